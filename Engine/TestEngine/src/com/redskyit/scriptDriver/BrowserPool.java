@@ -0,0 +1,169 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+// Browsers kept running between scripts, so a script that starts a browser gets a warm one
+// when the last script to use one with the same options (arguments and prefs) has finished.
+// A browser is reset before it is used again: other windows closed, cookies and storage of
+// the page it was left on cleared, the window returned to its starting size and about:blank
+// loaded.  Cookies and storage of other sites it visited are kept.  A browser that can't be
+// reset is quit and a new one started.
+//
+// At most max browsers are kept idle, the oldest are quit to make room.
+final class BrowserPool {
+	private static final String CLEAR_STORAGE =
+		"try { window.localStorage.clear(); } catch (e) {}\n"
+		+ "try { window.sessionStorage.clear(); } catch (e) {}\n";
+
+	private static final class Session {
+		final String key;
+		final ChromeDriver driver;
+		final Dimension size;			// window size when started
+		Session(String key, ChromeDriver driver, Dimension size) {
+			this.key = key;
+			this.driver = driver;
+			this.size = size;
+		}
+	}
+
+	private final int max;
+	private final List<Session> idle = new ArrayList<Session>();
+	private final IdentityHashMap<ChromeDriver, Session> busy = new IdentityHashMap<ChromeDriver, Session>();
+	private long started = 0;
+	private long reused = 0;
+
+	BrowserPool(int max) {
+		this.max = Math.max(max, 1);
+	}
+
+	// A browser started with options, warm from the pool if there is one
+	ChromeDriver acquire(ChromeOptions options) {
+		String key = canonical(options.asMap()).toString();
+		for (;;) {
+			Session session = null;
+			synchronized (this) {
+				for (int i = 0; i < idle.size(); i++) {
+					if (idle.get(i).key.equals(key)) {
+						session = idle.remove(i);
+						break;
+					}
+				}
+			}
+			if (null == session) break;
+			try {
+				reset(session);
+			} catch (WebDriverException e) {
+				quit(session.driver);
+				continue;
+			}
+			synchronized (this) {
+				reused++;
+				busy.put(session.driver, session);
+			}
+			return session.driver;
+		}
+		ChromeDriver driver = new ChromeDriver(options);
+		Session session = new Session(key, driver, driver.manage().window().getSize());
+		synchronized (this) {
+			started++;
+			busy.put(driver, session);
+		}
+		return driver;
+	}
+
+	// Return a browser to the pool, it is reset when it is next used
+	void release(ChromeDriver driver) {
+		Session evicted = null;
+		synchronized (this) {
+			Session session = busy.remove(driver);
+			if (null == session) {
+				evicted = new Session(null, driver, null);		// not ours
+			} else {
+				idle.add(session);
+				if (idle.size() > max) evicted = idle.remove(0);
+			}
+		}
+		if (null != evicted) quit(evicted.driver);
+	}
+
+	// Quit every browser
+	void close() {
+		List<Session> sessions = new ArrayList<Session>();
+		synchronized (this) {
+			sessions.addAll(idle);
+			sessions.addAll(busy.values());
+			idle.clear();
+			busy.clear();
+		}
+		for (Session session : sessions) {
+			quit(session.driver);
+		}
+	}
+
+	synchronized long started() {
+		return started;
+	}
+
+	synchronized long reused() {
+		return reused;
+	}
+
+	private void reset(Session session) {
+		ChromeDriver driver = session.driver;
+		String window = driver.getWindowHandle();
+		for (String handle : driver.getWindowHandles()) {
+			if (!handle.equals(window)) {
+				driver.switchTo().window(handle);
+				driver.close();
+			}
+		}
+		driver.switchTo().window(window);
+		driver.switchTo().defaultContent();
+		driver.manage().deleteAllCookies();
+		driver.executeScript(CLEAR_STORAGE);
+		driver.get("about:blank");
+		driver.manage().timeouts().implicitlyWait(0, TimeUnit.MILLISECONDS);
+		driver.manage().window().setSize(session.size);
+	}
+
+	private void quit(ChromeDriver driver) {
+		try {
+			driver.quit();
+		} catch (WebDriverException e) {
+			// already gone
+		}
+	}
+
+	// Options as a string that is the same for the same options, whatever order maps are in
+	private static Object canonical(Object value) {
+		if (value instanceof Map) {
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				sorted.put(String.valueOf(entry.getKey()), canonical(entry.getValue()));
+			}
+			return sorted;
+		}
+		if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object item : (List<?>) value) {
+				list.add(canonical(item));
+			}
+			return list;
+		}
+		return value;
+	}
+}
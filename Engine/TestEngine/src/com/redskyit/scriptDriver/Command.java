@@ -0,0 +1,18 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+// A script command.  Commands are registered with the interpreter against the verb that
+// invokes them (see RunTests.register).  When the verb is encountered the command parses
+// its arguments from the statement and returns a node, which is then executed.  Parsing
+// should only read (and trace) arguments, all effects belong in Node.execute so that a
+// node may be executed later, or more than once.
+public interface Command {
+	Node parse(RunTests.Statement statement) throws Exception;
+
+	public interface Node {
+		void execute() throws Exception;
+	}
+}
@@ -0,0 +1,13 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+// A library of additional commands.  Libraries are discovered using java.util.ServiceLoader,
+// so a jar on the classpath that lists its implementation in
+// META-INF/services/com.redskyit.scriptDriver.CommandLibrary has its commands registered
+// with every interpreter as it is created.
+public interface CommandLibrary {
+	void register(RunTests engine);
+}
@@ -0,0 +1,80 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// The files a script depends on, found in its compiled form: the script itself, the scripts
+// it includes and, through those, the scripts they include, and the commands run by
+// exec-include with the inputs of exec-include cache.  Paths are resolved as the commands
+// resolve them, relative to the directory of the script using them.  A path built from
+// function arguments ($name) can't be known until the script runs and is left out, as is
+// anything the output of an exec-include command includes.
+final class Dependencies {
+
+	private Dependencies() {
+	}
+
+	// The canonical files of a script and everything it depends on, the script first
+	static Set<File> of(File script, ScriptCache scripts) throws IOException {
+		Set<File> files = new LinkedHashSet<File>();
+		add(script.getCanonicalFile(), scripts, files);
+		return files;
+	}
+
+	private static void add(File file, ScriptCache scripts, Set<File> files) throws IOException {
+		if (!files.add(file) || !file.isFile()) return;
+		Script script;
+		try {
+			script = scripts.peek(file);
+		} catch (Exception e) {
+			return;			// doesn't compile, it depends on nothing else until it does
+		}
+		scan(script, file, scripts, files);
+	}
+
+	private static void scan(Script script, File file, ScriptCache scripts, Set<File> files) throws IOException {
+		Token[] tokens = script.tokens;
+		for (int i = 0; i < tokens.length; i++) {
+			Token token = tokens[i];
+			if (token.ttype == '{') {
+				scan(token.block, file, scripts, files);
+			} else if (isWord(token, "include") && i + 1 < tokens.length && isPath(tokens[i + 1])) {
+				add(resolve(file, tokens[++i].sval), scripts, files);
+			} else if (isWord(token, "exec-include")) {
+				int j = i + 1;
+				if (j < tokens.length && isWord(tokens[j], "cache")) {
+					j++;
+					if (j < tokens.length && tokens[j].ttype == '{') {
+						for (Token input : tokens[j].block.tokens) {
+							if (isPath(input)) files.add(resolve(file, input.sval));
+						}
+						j++;
+					}
+				}
+				if (j < tokens.length && isWord(tokens[j], "timeout")) j += 2;
+				if (j < tokens.length && isPath(tokens[j])) {
+					files.add(resolve(file, tokens[j].sval));
+				}
+			}
+		}
+	}
+
+	private static boolean isWord(Token token, String word) {
+		return token.ttype == StreamTokenizer.TT_WORD && word.equals(token.sval);
+	}
+
+	private static boolean isPath(Token token) {
+		return (token.ttype == StreamTokenizer.TT_WORD || token.ttype == '"') && token.sval.indexOf('$') == -1;
+	}
+
+	private static File resolve(File file, String path) throws IOException {
+		return new File(path.startsWith("/") ? path : file.getParentFile().getCanonicalPath() + "/" + path).getCanonicalFile();
+	}
+}
@@ -0,0 +1,74 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+// The checksums used by checksum and info, written algorithm:value.
+//   crc32   CRC-32 of the UTF-8 encoding of the text
+//   fnv1a   32 bit FNV-1a of the UTF-16 code units of the text, cheaper to compute
+// Both can be computed in the page (see SCRIPT) so that only the checksum of a large text
+// is returned by the browser.
+final class Digest {
+	static final String CRC32 = "crc32";
+	static final String FNV1A = "fnv1a";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// crc32(text) and fnv1a(text), returning algorithm:value as digest() does
+	static final String SCRIPT =
+		"var crcTable = null;\n"
+		+ "function crc32(s) {\n"
+		+ "  if (!crcTable) {\n"
+		+ "    crcTable = [];\n"
+		+ "    for (var n = 0; n < 256; n++) {\n"
+		+ "      var c = n;\n"
+		+ "      for (var k = 0; k < 8; k++) c = c & 1 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;\n"
+		+ "      crcTable[n] = c >>> 0;\n"
+		+ "    }\n"
+		+ "  }\n"
+		+ "  var crc = 0xFFFFFFFF;\n"
+		+ "  function add(b) { crc = crcTable[(crc ^ b) & 0xFF] ^ (crc >>> 8); }\n"
+		+ "  for (var i = 0; i < s.length; i++) {\n"			// encode as UTF-8, as Java does
+		+ "    var c = s.charCodeAt(i);\n"
+		+ "    if ((c & 0xFC00) == 0xD800 && (s.charCodeAt(i + 1) & 0xFC00) == 0xDC00) {\n"
+		+ "      c = 0x10000 + ((c - 0xD800) << 10) + (s.charCodeAt(++i) - 0xDC00);\n"
+		+ "    } else if ((c & 0xF800) == 0xD800) {\n"
+		+ "      c = 0x3F;\n"		// unpaired surrogate
+		+ "    }\n"
+		+ "    if (c < 0x80) { add(c); }\n"
+		+ "    else if (c < 0x800) { add(0xC0 | c >> 6); add(0x80 | c & 0x3F); }\n"
+		+ "    else if (c < 0x10000) { add(0xE0 | c >> 12); add(0x80 | c >> 6 & 0x3F); add(0x80 | c & 0x3F); }\n"
+		+ "    else { add(0xF0 | c >> 18); add(0x80 | c >> 12 & 0x3F); add(0x80 | c >> 6 & 0x3F); add(0x80 | c & 0x3F); }\n"
+		+ "  }\n"
+		+ "  return 'crc32:' + ((crc ^ 0xFFFFFFFF) >>> 0);\n"
+		+ "}\n"
+		+ "function fnv1a(s) {\n"
+		+ "  var h = 0x811c9dc5;\n"
+		+ "  for (var i = 0; i < s.length; i++) h = Math.imul(h ^ s.charCodeAt(i), 0x01000193);\n"
+		+ "  return 'fnv1a:' + (h >>> 0);\n"
+		+ "}\n";
+
+	private Digest() {
+	}
+
+	// The algorithm of a checksum, crc32 unless it says otherwise
+	static String algorithm(String checksum) {
+		return checksum.startsWith(FNV1A + ":") ? FNV1A : CRC32;
+	}
+
+	static String digest(String text, String algorithm) {
+		if (algorithm.equals(FNV1A)) {
+			int h = 0x811c9dc5;
+			for (int i = 0; i < text.length(); i++) {
+				h = (h ^ text.charAt(i)) * 0x01000193;
+			}
+			return FNV1A + ":" + (h & 0xFFFFFFFFL);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(text.getBytes(UTF8));
+		return CRC32 + ":" + crc.getValue();
+	}
+}
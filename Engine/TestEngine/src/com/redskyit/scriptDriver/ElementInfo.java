@@ -0,0 +1,188 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Scanner;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebElement;
+
+// The properties printed by info and dump, collected by a single script rather than a
+// WebDriver request per property.  Given an element the script returns its record, given
+// null it returns a record for every element with a test-id.  A record is:
+//   [ element, test-id, tag, displayed, x, y, width, height, enabled, selected, value, text,
+//     crc32, fnv1a ]
+// displayed and value use the same atoms as WebDriver's isDisplayed and getAttribute.
+// text is only filled in for elements whose visible text is simply their collapsed text
+// content, for anything else it is null and getText is used.  crc32 and fnv1a are the
+// checksums (see Digest) of the content, the value of a field or the text of anything
+// else, when that is known in the page.  Unless the full record is asked for, a multi-line
+// content is left out and only its checksums are returned.
+final class ElementInfo {
+	private static final String ATOMS = "/org/openqa/selenium/remote/";
+	private static String script = null;
+
+	private ElementInfo() {
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<List<Object>> collect(JavascriptExecutor driver, WebElement element, boolean full) throws Exception {
+		return (List<List<Object>>) driver.executeScript(script(), element, full);
+	}
+
+	// The info line for a record, as the properties were printed when read one at a time
+	static String format(List<Object> record, String selector, String algorithm) {
+		String tag = tag(record);
+		StringBuilder sb = new StringBuilder();
+		sb.append(null == selector ? "test-id \"" + record.get(1) + "\"" : selector);
+		sb.append(" info");
+		sb.append(" tag ").append(tag);
+		sb.append(displayed(record) ? "" : " not").append(" displayed");
+		sb.append(" at ").append(x(record)).append(',').append(y(record));
+		sb.append(" size ").append(width(record)).append(',').append(height(record));
+		sb.append(enabled(record) ? "" : " not").append(" enabled");
+		sb.append(selected(record) ? "" : " not").append(" selected");
+		if (tag.equals("input") || tag.equals("select")) {
+			sb.append(" check \"").append(value(record)).append('"');
+		} else {
+			boolean omitted = null == record.get(tag.equals("textarea") ? 10 : 11) && null != record.get(12);
+			if (omitted || content(record).indexOf('\n') != -1) {
+				sb.append(" checksum \"").append(digest(record, algorithm)).append('"');
+			} else {
+				sb.append(" check \"").append(text(record)).append('"');
+			}
+		}
+		return sb.toString();
+	}
+
+	static String tag(List<Object> record) {
+		return (String) record.get(2);
+	}
+
+	static boolean displayed(List<Object> record) {
+		return Boolean.TRUE.equals(record.get(3));
+	}
+
+	// Coordinates are truncated as WebElement.getLocation and getSize do
+	static int x(List<Object> record) {
+		return ((Number) record.get(4)).intValue();
+	}
+
+	static int y(List<Object> record) {
+		return ((Number) record.get(5)).intValue();
+	}
+
+	static int width(List<Object> record) {
+		return ((Number) record.get(6)).intValue();
+	}
+
+	static int height(List<Object> record) {
+		return ((Number) record.get(7)).intValue();
+	}
+
+	static boolean enabled(List<Object> record) {
+		return Boolean.TRUE.equals(record.get(8));
+	}
+
+	static boolean selected(List<Object> record) {
+		return Boolean.TRUE.equals(record.get(9));
+	}
+
+	// The value attribute of a field
+	static String value(List<Object> record) {
+		return (String) record.get(10);
+	}
+
+	// The visible text, as getText
+	static String text(List<Object> record) {
+		String text = (String) record.get(11);
+		if (null == text) {
+			text = ((WebElement) record.get(0)).getText();
+			record.set(11, text);
+		}
+		return text;
+	}
+
+	// The text tested by check and checksum, the value of a field or the visible text
+	static String content(List<Object> record) {
+		String tag = tag(record);
+		if (tag.equals("input") || tag.equals("select")) {
+			return value(record);
+		}
+		if (tag.equals("textarea")) {
+			if (null == record.get(10) && null != record.get(12)) {
+				record.set(10, ((WebElement) record.get(0)).getAttribute("value"));		// left out by the page
+			}
+			return value(record);
+		}
+		return text(record);
+	}
+
+	// The checksum of the content, as computed by the page if it could be
+	static String digest(List<Object> record, String algorithm) {
+		String digest = (String) record.get(algorithm.equals(Digest.FNV1A) ? 13 : 12);
+		if (null == digest) {
+			String content = content(record);
+			return null == content ? null : Digest.digest(content, algorithm);
+		}
+		return digest;
+	}
+
+	private static synchronized String script() throws Exception {
+		if (null == script) {
+			script = Digest.SCRIPT
+				+ "var isShown = " + atom("isDisplayed.js") + ";\n"
+				+ "var getAttribute = " + atom("getAttribute.js") + ";\n"
+				+ "function text(el, shown) {\n"
+				+ "  if (!shown) return '';\n"
+				+ "  if (el.children.length > 0) return null;\n"
+				+ "  var style = window.getComputedStyle(el);\n"
+				+ "  if ((style.whiteSpace != 'normal' && style.whiteSpace != 'nowrap') || style.textTransform != 'none') return null;\n"
+				+ "  return el.textContent.replace(/\\u200b/g, '').replace(/[\\n\\r\\t\\f\\v \\u2028\\u2029]+/g, ' ')\n"
+				+ "    .replace(/^[^\\S\\xa0]+|[^\\S\\xa0]+$/g, '').replace(/\\xa0/g, ' ');\n"
+				+ "}\n"
+				+ "function record(el, full) {\n"
+				+ "  var tag = el.tagName.toLowerCase();\n"
+				+ "  var rect = el.getBoundingClientRect();\n"
+				+ "  var shown = isShown(el);\n"
+				+ "  var enabled = !(el.matches(':disabled') || (tag == 'option' && el.closest('select:disabled')));\n"
+				+ "  var selected = tag == 'option' ? el.selected\n"
+				+ "    : tag == 'input' && (el.type == 'checkbox' || el.type == 'radio') ? el.checked : false;\n"
+				+ "  var field = tag == 'input' || tag == 'select' || tag == 'textarea';\n"
+				+ "  var value = field ? getAttribute(el, 'value') : null;\n"
+				+ "  var visible = text(el, shown);\n"
+				+ "  var content = field ? value : visible;\n"
+				+ "  var sums = content == null ? [ null, null ] : [ crc32(content), fnv1a(content) ];\n"
+				+ "  if (!full && content != null && content.indexOf('\\n') != -1) {\n"
+				+ "    if (tag == 'textarea') value = null; else if (!field) visible = null;\n"
+				+ "  }\n"
+				+ "  return [ el, el.getAttribute('test-id'), tag, shown,\n"
+				+ "    rect.left + window.pageXOffset, rect.top + window.pageYOffset, rect.width, rect.height,\n"
+				+ "    enabled, selected, value, visible, sums[0], sums[1] ];\n"
+				+ "}\n"
+				+ "if (arguments[0]) return [ record(arguments[0], arguments[1]) ];\n"
+				+ "var found = document.evaluate(\"//*[@test-id]\", document, null, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null);\n"
+				+ "var records = [];\n"
+				+ "for (var i = 0; i < found.snapshotLength; i++) records.push(record(found.snapshotItem(i), arguments[1]));\n"
+				+ "return records;\n";
+		}
+		return script;
+	}
+
+	private static String atom(String name) throws Exception {
+		InputStream in = ElementInfo.class.getResourceAsStream(ATOMS + name);
+		if (null == in) {
+			throw new Exception("selenium atom " + name + " not found");
+		}
+		Scanner scanner = new Scanner(in, "UTF-8");
+		try {
+			return scanner.useDelimiter("\\A").next();
+		} finally {
+			scanner.close();
+		}
+	}
+}
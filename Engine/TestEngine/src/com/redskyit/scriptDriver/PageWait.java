@@ -0,0 +1,186 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.RemoteWebElement;
+
+// Waits that return as soon as the page changes, rather than sleeping for a fixed time
+// between attempts.  A script run with executeAsyncScript watches the document with a
+// MutationObserver (and for input events, which change values without a mutation) and
+// returns when the page changes, or when an element matching a selector appears.
+//
+// The script is limited to a slice of the wait so a navigation or a page that never
+// settles costs at most one slice.  If the script can't be run, the wait falls back to
+// sleeping.
+final class PageWait {
+	private static final long SLICE = 10000;
+	private static final long SCRIPT_TIMEOUT = 30000;
+
+	private static final String WATCH =
+		"var done = arguments[arguments.length - 1], finished = false, observer, timer;\n"
+		+ "function finish(result) {\n"
+		+ "  if (finished) return;\n"
+		+ "  finished = true;\n"
+		+ "  observer.disconnect();\n"
+		+ "  clearTimeout(timer);\n"
+		+ "  document.removeEventListener('input', changed, true);\n"
+		+ "  document.removeEventListener('change', changed, true);\n"
+		+ "  done(outcome(result));\n"
+		+ "}\n"
+		+ "observer = new MutationObserver(function() { changed(); });\n"
+		+ "observer.observe(document, { childList: true, subtree: true, attributes: true, characterData: true });\n"
+		+ "document.addEventListener('input', changed, true);\n"
+		+ "document.addEventListener('change', changed, true);\n"
+		+ "timer = setTimeout(function() { finish(false); }, arguments[0]);\n";
+
+	// arguments: timeout, element.  Returns whether the element is still in the document
+	// (see SelectionCache).
+	private static final String CHANGE =
+		"var el = arguments[1];\n"
+		+ SelectionCache.VALID
+		+ "function changed() { finish(true); }\n"
+		+ "function outcome() { return valid(el); }\n"
+		+ WATCH;
+
+	// arguments: timeout, kind (xpath or css), selector
+	private static final String ELEMENT =
+		"var kind = arguments[1], selector = arguments[2];\n"
+		+ "function find() {\n"
+		+ "  if (kind == 'xpath') return document.evaluate(selector, document, null, XPathResult.FIRST_ORDERED_NODE_TYPE, null).singleNodeValue;\n"
+		+ "  return document.querySelector(selector);\n"
+		+ "}\n"
+		+ "function changed() { if (find()) finish(true); }\n"
+		+ "function outcome(found) { return found; }\n"
+		+ "if (find()) { arguments[arguments.length - 1](true); return; }\n"
+		+ WATCH;
+
+	// arguments: timeout, quiet window, timer threshold.  The first call in a page wraps
+	// fetch, XMLHttpRequest and setTimeout to count what is in flight, so requests started
+	// before then aren't seen.
+	private static final String IDLE =
+		"var done = arguments[arguments.length - 1], timeout = arguments[0], quiet = arguments[1];\n"
+		+ "var st = window.__scriptDriverIdle;\n"
+		+ "if (!st) {\n"
+		+ "  st = window.__scriptDriverIdle = { requests: 0, timers: {}, pending: 0, last: Date.now(),\n"
+		+ "    setTimeout: window.setTimeout, clearTimeout: window.clearTimeout };\n"
+		+ "  var busy = function(n) { st.requests += n; st.last = Date.now(); };\n"
+		+ "  if (window.fetch) {\n"
+		+ "    var fetch = window.fetch;\n"
+		+ "    window.fetch = function() {\n"
+		+ "      var finished = function() { busy(-1); }, p;\n"
+		+ "      busy(1);\n"
+		+ "      try { p = fetch.apply(this, arguments); } catch (e) { finished(); throw e; }\n"
+		+ "      p.then(finished, finished);\n"
+		+ "      return p;\n"
+		+ "    };\n"
+		+ "  }\n"
+		+ "  var send = XMLHttpRequest.prototype.send;\n"
+		+ "  XMLHttpRequest.prototype.send = function() {\n"
+		+ "    var counted = true, finished = function() { if (counted) { counted = false; busy(-1); } };\n"
+		+ "    busy(1);\n"
+		+ "    this.addEventListener('loadend', finished);\n"
+		+ "    try { return send.apply(this, arguments); } catch (e) { finished(); throw e; }\n"
+		+ "  };\n"
+		+ "  var cleared = function(id) {\n"
+		+ "    if (st.timers[id]) { delete st.timers[id]; st.pending--; st.last = Date.now(); }\n"
+		+ "  };\n"
+		+ "  window.setTimeout = function(fn, delay) {\n"
+		+ "    if (typeof fn != 'function' || delay > st.threshold) return st.setTimeout.apply(window, arguments);\n"
+		+ "    var args = Array.prototype.slice.call(arguments), id;\n"
+		+ "    args[0] = function() { cleared(id); return fn.apply(this, arguments); };\n"
+		+ "    id = st.setTimeout.apply(window, args);\n"
+		+ "    st.timers[id] = true;\n"
+		+ "    st.pending++;\n"
+		+ "    return id;\n"
+		+ "  };\n"
+		+ "  window.clearTimeout = function(id) { cleared(id); return st.clearTimeout.apply(window, arguments); };\n"
+		+ "}\n"
+		+ "st.threshold = arguments[2];\n"
+		+ "function animating() {\n"			// finite animations, a spinner would never finish
+		+ "  if (!document.getAnimations) return false;\n"
+		+ "  var all = document.getAnimations();\n"
+		+ "  for (var i = 0; i < all.length; i++) {\n"
+		+ "    if (all[i].playState == 'running' && all[i].effect && all[i].effect.getComputedTiming().endTime != Infinity) return true;\n"
+		+ "  }\n"
+		+ "  return false;\n"
+		+ "}\n"
+		+ "var started = Date.now();\n"
+		+ "function check() {\n"
+		+ "  var now = Date.now();\n"
+		+ "  if (st.requests > 0 || st.pending > 0 || animating()) st.last = now;\n"
+		+ "  if (now - st.last >= quiet) { done(true); return; }\n"
+		+ "  if (now - started >= timeout) { done(false); return; }\n"
+		+ "  st.setTimeout.call(window, check, Math.min(25, quiet));\n"
+		+ "}\n"
+		+ "check();\n";
+
+	private final RemoteWebDriver driver;
+	private boolean timeoutSet = false;
+
+	PageWait(RemoteWebDriver driver) {
+		this.driver = driver;
+	}
+
+	RemoteWebDriver getDriver() {
+		return driver;
+	}
+
+	// Wait up to ms for the page to change, then check the selection is still in the
+	// document.  TRUE if it is, null if that isn't known.
+	Object change(long ms, RemoteWebElement element) {
+		if (ms <= 0) return null;
+		return run(ms, CHANGE, ms, element);
+	}
+
+	// Wait until an element matching an xpath or css selector exists, or the deadline (a
+	// System.nanoTime() value) passes
+	void element(String kind, String selector, long deadline) {
+		long remaining = (deadline - System.nanoTime()) / 1000000L;
+		while (remaining > 0) {
+			long slice = Math.min(remaining, SLICE);
+			if (!Boolean.FALSE.equals(run(slice, ELEMENT, slice, kind, selector))) return;		// found, or try the query again
+			remaining = (deadline - System.nanoTime()) / 1000000L;
+		}
+	}
+
+	// Wait until the application is idle for quiet ms: no fetch or XMLHttpRequest in flight, no
+	// pending timeout of up to threshold ms and no running animation.  false if the deadline
+	// (a System.nanoTime() value) passes first.
+	boolean idle(long quiet, long threshold, long deadline) {
+		long remaining = (deadline - System.nanoTime()) / 1000000L;
+		while (remaining > 0) {
+			long slice = Math.min(remaining, SLICE);
+			if (Boolean.TRUE.equals(run(slice, IDLE, slice, quiet, threshold))) return true;
+			remaining = (deadline - System.nanoTime()) / 1000000L;
+		}
+		return false;
+	}
+
+	private Object run(long ms, String script, Object... args) {
+		long started = System.nanoTime();
+		try {
+			if (!timeoutSet) {
+				driver.manage().timeouts().setScriptTimeout(SCRIPT_TIMEOUT, TimeUnit.MILLISECONDS);
+				timeoutSet = true;
+			}
+			return driver.executeAsyncScript(script, args);
+		} catch (WebDriverException e) {
+			// page is changing (or can't run the script), sleep out the rest of the time instead
+			long left = ms - (System.nanoTime() - started) / 1000000L;
+			if (left > 0) {
+				try {
+					Thread.sleep(Math.min(left, 100));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return null;
+		}
+	}
+}
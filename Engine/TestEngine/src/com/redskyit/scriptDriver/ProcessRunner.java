@@ -0,0 +1,106 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Runs the external commands of exec and exec-include.  A command's stderr (and its stdout,
+// unless the caller reads it) is pumped to our own output on background threads, so a
+// command that writes a lot can never block on a full pipe.  The pumps inherit the trace
+// capture of the thread starting the command (see Trace.capture), so with --parallel or
+// --daemon the output goes with the output of the script that ran it.  A command given a
+// timeout is killed by a watchdog once the timeout expires.
+final class ProcessRunner {
+
+	static final class Job {
+		final String command;
+		final long timeout;
+		private final Process process;
+		private final Thread stdout;
+		private final Thread stderr;
+		private volatile boolean timedOut = false;
+
+		private Job(final List<String> arguments, long timeout, boolean pumpStdout) throws Exception {
+			this.command = arguments.get(0);
+			this.timeout = timeout;
+			this.process = new ProcessBuilder(arguments).start();
+			this.process.getOutputStream().close();		// commands get no input
+			this.stdout = pumpStdout ? pump(process.getInputStream(), Trace.out) : null;
+			this.stderr = pump(process.getErrorStream(), Trace.out);
+			if (timeout > 0) {
+				Thread watchdog = new Thread("exec watchdog: " + command) {
+					@Override
+					public void run() {
+						try {
+							if (!process.waitFor(Job.this.timeout, TimeUnit.MILLISECONDS)) {
+								timedOut = true;
+								process.destroyForcibly();
+							}
+						} catch (InterruptedException e) {
+							// give up watching
+						}
+					}
+				};
+				watchdog.setDaemon(true);
+				watchdog.start();
+			}
+		}
+
+		// The command's stdout, when it is not being pumped
+		InputStream getOutput() {
+			return process.getInputStream();
+		}
+
+		boolean isAlive() {
+			return process.isAlive();
+		}
+
+		// Wait for the command to finish and return its exit status
+		int waitFor() throws Exception {
+			int status = process.waitFor();
+			if (timedOut) {
+				// don't wait for the pumps, children of the command may still hold its output open
+				throw new Exception(command + " timed out after " + (timeout / 1000.0) + " seconds");
+			}
+			if (null != stdout) stdout.join();
+			stderr.join();
+			return status;
+		}
+
+		void kill() {
+			process.destroyForcibly();
+		}
+	}
+
+	// Start a command.  If pumpStdout is false, the caller must read the command's output.
+	static Job start(List<String> arguments, long timeout, boolean pumpStdout) throws Exception {
+		return new Job(arguments, timeout, pumpStdout);
+	}
+
+	private static Thread pump(final InputStream in, final PrintStream out) {
+		Thread thread = new Thread("exec pump") {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						out.println(line);
+					}
+				} catch (Exception e) {
+					// process has gone
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
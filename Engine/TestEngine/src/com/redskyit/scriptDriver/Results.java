@@ -0,0 +1,112 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// The outcome of each script of a run, keyed by the script's path as given on the command
+// line.  Saved as a text file, one script per line:
+//   <status> <tab> <seconds> <tab> <script> [<tab> <key>]
+// Lines starting with # are ignored, so the result files of several runs (shards) can be
+// merged by concatenating them, a later line for a script replacing an earlier one.  A
+// results file also serves as the timing history used to shard a suite (see Shard).  The
+// key is only kept by a result store, it identifies the files and app version a script
+// was run with (see RunTests.storeKey).
+final class Results {
+	static final String PASSED = "passed";
+	static final String FAILED = "failed";
+	static final String CACHED = "cached";			// passed before with the same key, not run
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final class Result {
+		final String status;
+		final long millis;
+		final String script;
+		final String key;
+		Result(String status, long millis, String script, String key) {
+			this.status = status;
+			this.millis = millis;
+			this.script = script;
+			this.key = key;
+		}
+	}
+
+	private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>();
+
+	void record(String script, String status, long millis) {
+		record(script, status, millis, null);
+	}
+
+	synchronized void record(String script, String status, long millis, String key) {
+		results.remove(script);			// keep the order scripts finished in
+		results.put(script, new Result(status, millis, script, key));
+	}
+
+	synchronized Result get(String script) {
+		return results.get(script);
+	}
+
+	synchronized List<Result> all() {
+		return new ArrayList<Result>(results.values());
+	}
+
+	synchronized boolean isEmpty() {
+		return results.isEmpty();
+	}
+
+	// Add the results of another run, replacing those for the same scripts
+	synchronized void merge(Results other) {
+		for (Result result : other.all()) {
+			results.put(result.script, result);
+		}
+	}
+
+	// The results in a file, none if it doesn't exist
+	static Results load(File file) throws IOException {
+		Results results = new Results();
+		if (file.isFile()) {
+			int lineno = 0;
+			for (String line : Files.readAllLines(file.toPath(), UTF8)) {
+				lineno++;
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] fields = line.split("\t", 4);
+				try {
+					results.record(fields[2], fields[0], (long) (Double.parseDouble(fields[1]) * 1000.0), fields.length > 3 ? fields[3] : null);
+				} catch (RuntimeException e) {
+					throw new IOException(file + ": invalid result at line " + lineno);
+				}
+			}
+		}
+		return results;
+	}
+
+	// Write the file, replacing it in one step so a reader never sees part of it
+	synchronized void save(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+		try {
+			for (Result result : results.values()) {
+				out.write(result.status + "\t" + (result.millis / 1000.0) + "\t" + result.script);
+				if (null != result.key) out.write("\t" + result.key);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,32 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+// How long a failed command waits for the page before trying again.  The first retries
+// come quickly, as most failures are a page that is a moment away from being ready, and
+// the delay then doubles up to a maximum so a page that is slow to settle isn't hammered
+// with requests.  Each delay is the most a retry waits, a page change ends it early (see
+// PageWait).
+final class RetryPolicy {
+	static final long DEFAULT_INITIAL = 20;
+	static final long DEFAULT_MAX = 400;
+
+	private final long initial;
+	private final long max;
+
+	RetryPolicy(long initial, long max) {
+		this.initial = Math.max(initial, 1);
+		this.max = Math.max(max, this.initial);
+	}
+
+	// The delay in ms before the given retry (1 for the first)
+	long delay(int retry) {
+		long delay = initial;
+		for (int i = 1; i < retry && delay < max; i++) {
+			delay <<= 1;
+		}
+		return Math.min(delay, max);
+	}
+}
@@ -7,20 +7,41 @@ package com.redskyit.scriptDriver;
 // API documentation: https://seleniumhq.github.io/selenium/docs/api/java/
 
 import java.io.BufferedReader;
-import java.io.CharArrayReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.StreamTokenizer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.zip.CRC32;
 import java.time.Duration;
 
 import org.apache.commons.io.FileUtils;
@@ -55,97 +76,100 @@ import org.openqa.selenium.remote.RemoteWebElement;
 import org.openqa.selenium.support.ui.ExpectedConditions;
 import org.openqa.selenium.support.ui.WebDriverWait;
 
+import com.redskyit.scriptDriver.Command.Node;
+
 public class RunTests {
 
 	// Execution selection represents an executable chunk of source code, be that a script from file
 	// or the body of a function/alias.  An execution selection has a body and optionally some arguments.
+	// The body of a function is bound to its parameters when it is defined, each call of the function
+	// gets its own execution selection holding the argument values in parameter order.
 	private class ExecutionContext {
 		private List<String> params = null;
-		private String body = null;
-		private List<Object> args = null;
+		private Script body = null;
+		private Object[] args = null;
 		public ExecutionContext() {
 		}
-		public ExecutionContext(List<String> params, String body) {
+		public ExecutionContext(List<String> params, Script body) {
 			this.params = params;
-			this.body = body;
-			this.args = new ArrayList<Object>();
+			this.body = null != params && params.size() > 0 && null != body ? body.bind(params) : body;
+		}
+		private ExecutionContext(ExecutionContext function, Object[] args) {
+			this.params = function.params;
+			this.body = function.body;
+			this.args = args;
 		}
-		public String getBody() {
+		public Script getBody() {
 			return body;
 		}
 		public List<String> getParams() {
 			return params;
 		}
-		public void addArg(Object arg) {
-			if (null == args) throw new Error("Script: cannot add argument to alias without parameters"); 
-			args.add(arg);
-		}
-		public Object getArg(String name) {
-			if (args != null && args.size() > 0) {
-				for (int i = 0; i < params.size(); i++) {
-					if (params.get(i).equals(name)) {
-						return args.get(i);
-					}
-				}
-			}
-			return null;
+		// An invocation of this function with the given arguments
+		public ExecutionContext call(Object[] args) {
+			return new ExecutionContext(this, args);
 		}
-		public String getExpandedString(String str) {
-			// Token is a word (rather than quoted string).  We only support $name format
-			// variable substitution in words
-			if (args != null && args.size() > 0) {
-				for (int i = 0; i < params.size(); i++) {
-					Object v = args.get(i);
-					if (v.getClass() == Double.class) {
-						Integer value = new Integer(((Double)v).intValue());
-						str = str.replace("$I("+params.get(i)+")", value.toString());
-					}
-					str = str.replace("$("+params.get(i)+")",args.get(i).toString());
-				}
-			}
-			return str;
+		public String getExpandedString(TokenStream tokenizer) {
+			return getExpandedString(tokenizer.token());
 		}
-		public String getExpandedString(StreamTokenizer tokenizer) {
-			// Token is a word (rather than quoted string).  We only support $name format
-			// variable substitution in words
-			if (args != null && args.size() > 0) {
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD) {
-					if (tokenizer.sval.startsWith("$")) {
-						Object repl = this.getArg(tokenizer.sval.substring(1));
-						if (null != repl) return repl.toString();
-					}
-					if (tokenizer.sval.startsWith("\\$")) {
-						return tokenizer.sval.substring(1);
-					}
+		public String getExpandedString(Token token) {
+			// Words of the form $name are replaced by the argument value, quoted strings
+			// have their $(name) and $I(name) references expanded.
+			if (args != null && args.length > 0) {
+				if (token.slot != -1) {
+					return args[token.slot].toString();
 				}
-				if (tokenizer.ttype == '"') {
-					// token is a quoted string
-					return this.getExpandedString(tokenizer.sval);
+				if (null != token.template) {
+					return token.template.expand(args);
 				}
 			}
-			return tokenizer.sval;
+			return token.sval;
 		}
-		public double getExpandedNumber(StreamTokenizer tokenizer) {
+		public double getExpandedNumber(TokenStream tokenizer) {
 			// Token is a word (rather than quoted string).  We only support $name format
 			// variable substitution in words
 			if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
 				return tokenizer.nval;
 			}
-			if (args != null && args.size() > 0) {
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.startsWith("$")) {
-					Object repl = this.getArg(tokenizer.sval.substring(1));
-					if (null != repl) {
-						if (repl.getClass() == Double.class){
-							return ((Double)repl).doubleValue();
-						}
+			if (args != null && args.length > 0) {
+				Token token = tokenizer.token();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD && token.slot != -1) {
+					Object repl = args[token.slot];
+					if (repl.getClass() == Double.class){
+						return ((Double)repl).doubleValue();
 					}
 				}
 				throw new Error("Argument is not a number");
 			}
 			throw new Error("Arguments are missing from function call");
 		}
-		public void clearArgs() {
-			if (args != null) args.clear();			
+		// Bind the current argument values into the body of an alias or function being
+		// defined within this context, so the new body is self contained.  Tokens are only
+		// copied when there is something to expand.
+		public Script expand(Script block) {
+			if (null == block || args == null || args.length == 0) return block;
+			Token[] tokens = new Token[block.tokens.length];
+			for (int i = 0; i < tokens.length; i++) {
+				Token token = block.tokens[i];
+				switch(token.ttype) {
+				case StreamTokenizer.TT_WORD:
+					Object repl = token.slot != -1 ? args[token.slot] : null;
+					if (null != repl && repl.getClass() == Double.class) {
+						token = token.with(StreamTokenizer.TT_NUMBER, null, (Double) repl);
+					} else {
+						token = token.with(StreamTokenizer.TT_WORD, getExpandedString(token), 0);
+					}
+					break;
+				case '"':
+					token = token.with('"', getExpandedString(token), 0);
+					break;
+				case '{':
+					token = token.with(expand(token.block));
+					break;
+				}
+				tokens[i] = token;
+			}
+			return new Script(block.name, tokens);
 		}
 	};
 
@@ -161,74 +185,144 @@ public class RunTests {
 	SelectionType stype = SelectionType.None;
 	String selector = null;
 	String selectionCommand = null;
+	private String fieldId = null;		// test-id of a field selection
+	private boolean testIdIndex = false;
+	private PageWait pageWait = null;
+	private SelectionCache selections = new SelectionCache();
 	private String screenShotPath = null;
-	private long _waitFor = 0;
+	private String checksumAlgorithm = Digest.CRC32;		// printed by info and dump
+	private long _waitFor = 0;			// System.nanoTime() deadline of the wait timer, 0 if not set
 	private long _defaultWaitFor = 5000;
+	private RetryPolicy poll = new RetryPolicy(RetryPolicy.DEFAULT_INITIAL, RetryPolicy.DEFAULT_MAX);
+	private long idleWindow = 500;			// wait idle: how long the application must be quiet
+	private long idleTimers = 1000;			// wait idle: longest timeout counted as activity
+	private HashMap<String, long[]> retries = new HashMap<String, long[]>();		// command -> { retried, retries, wasted ns }
 	private boolean _if;
 	private boolean _test;
 	private boolean _skip;
 	private boolean _not;
+	private boolean _probe;
 	HashMap<String, ExecutionContext> functions = new HashMap<String,ExecutionContext>();
 	private boolean autolog = false;
 	private Dimension chrome = new Dimension(0,0);
 	private HashMap<String, ArrayList<Object>> stacks = new HashMap<String, ArrayList<Object>>();
+	private HashMap<String, Command> commands = new HashMap<String, Command>();
+	private final ScriptCache scripts;			// shared by the sessions of a parallel run
+	private BrowserPool browsers;				// also shared
+	private final Results results;				// and the outcome of each script
+	private PrintStream err = System.err;		// where a failed script's stack trace goes
+	private List<ProcessRunner.Job> jobs = new ArrayList<ProcessRunner.Job>();
+	private HashMap<String, Command> browserCommands = new HashMap<String, Command>();
+	private HashMap<String, CheckCommand> checks = new HashMap<String, CheckCommand>();
+	private static final Node NOOP = new Node() {
+		public void execute() {
+		}
+	};
+
+	private PrintStream trace = Trace.at(Trace.COMMANDS);		// command trace
+	private static final int MAX_ITERATIONS = 1000;		// default guard for until loops
+	private boolean keepGoing = false;			// run every script, see runSession
+	private int reruns = 0;						// times a failing script is run again, see runSession
+	private static final long DAEMON_STOP_WAIT = 300;	// seconds --stop waits for requests to finish
+	private static final long WATCH_SETTLE = 200;		// ms without changes before --watch runs scripts
 
 	private static String version = "0.5.2";
 	
+	// Thrown to have WaitFor try again, without a stack trace as it is thrown on every failed attempt
 	@SuppressWarnings("serial")
 	public class RetryException extends Exception {
 		public RetryException(String message) {
-			super(message);
+			super(message, null, false, false);
 		}
 	};
 	
+	// A check command, see registerCheck
+	private interface CheckCommand {
+		Check parse(Statement s) throws Exception;
+	}
+
+	private abstract class Check {
+		final Statement s;
+		Check(Statement s) {
+			this.s = s;
+		}
+		// Run the check as a command on its own
+		abstract void execute() throws Exception;
+		// Test the selection's properties (see ElementInfo), returning why the check fails
+		// or null if it passes
+		abstract String test(List<Object> record, boolean not);
+		// true if the test needs the selection's text rather than just its checksum
+		boolean needsContent() {
+			return false;
+		}
+	}
+
 	abstract class WaitFor {
-		public WaitFor(String cmd, StreamTokenizer tokenizer, boolean requiresContext) throws Exception {
+		public WaitFor(String cmd, int lineno, boolean requiresContext) throws Exception {
 			if (requiresContext && null == selection) {
-				throw new Exception(cmd + " command requires a field selection at line " + tokenizer.lineno());
+				throw new Exception(cmd + " command requires a field selection at line " + lineno);
+			}
+			if (_probe) {
+				// Evaluating a loop condition, make a single attempt
+				try {
+					if (requiresContext && null == selection) {
+						probeFailed();
+					} else {
+						this.run();
+					}
+				} catch(RetryException r) {
+					probeFailed();
+				} catch(WebDriverException e) {
+					probeFailed();
+				}
+				_not = false;
+				return;
 			}
 			int retry = 0;
-			long now = 0;
+			long started = System.nanoTime();
+			long attempt = started;
 			do {
 				try {
+					attempt = System.nanoTime();
 					this.run();
+					retried(cmd, retry, attempt - started);
 					return;
 				} catch(StaleElementReferenceException e) {
 					// element has gone stale, re-select it
-					System.out.println("// EXCEPTION : StaleElementReference : " + e.getMessage().split("\n")[0]);
+					if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// EXCEPTION : StaleElementReference : " + e.getMessage().split("\n")[0]);
 					retry++;
 				} catch(InvalidElementStateException is) {
-					System.out.println("// EXCEPTION : InvalidElementStateException : " + is.getMessage().split("\n")[0]);
+					if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// EXCEPTION : InvalidElementStateException : " + is.getMessage().split("\n")[0]);
 					scrollContextIntoView(selection);
 					retry++;
 				} catch(WebDriverException e2) {
-					System.out.println("// EXCEPTION : WebDriverException : " + e2.getMessage().split("\n")[0]);	
+					if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// EXCEPTION : WebDriverException : " + e2.getMessage().split("\n")[0]);	
 					// Try and auto-recover by scrolling this element into view
 					scrollContextIntoView(selection);
 					retry++;
 				} catch(RetryException r) {
-					System.out.println("// EXCEPTION : RetryException : " + r.getMessage().split("\n")[0]);	
-					// Try and auto-recover by scrolling this element into view
+					if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// EXCEPTION : RetryException : " + r.getMessage());	
 					retry++;
 				} catch(Exception e3) {
-					System.out.println("// EXCEPTION : " + e3.getMessage().split("\n")[0]);
-					if (retry++ > 3) this.fail(e3);
+					if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// EXCEPTION : " + e3.getMessage().split("\n")[0]);
+					if (retry++ > 3) {
+						retried(cmd, retry, System.nanoTime() - started);
+						this.fail(e3);
+					}
 				}
 				// attempt to recover
-				now = (new Date()).getTime();
-				System.out.println(now + ": DEBUG: retry=" + retry + " calling sleepAndReselect(100) _waitFor = " + _waitFor);
-				if (retry == 1 && now >= _waitFor) {
-					System.out.println("// Wait timer already expired, apply default wait timer");
-					System.out.println("// wait " + (_defaultWaitFor*1.0)/1000.0);
-					_waitFor = (long) now + _defaultWaitFor;
+				if (retry == 1 && !waiting()) {
+					if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// Wait timer not set, apply default wait timer of " + (_defaultWaitFor*1.0)/1000.0);
+					startWait(_defaultWaitFor);
 				}
-				sleepAndReselect(100);
-			} while (_waitFor > 0 && now < _waitFor);
+				sleepAndReselect(poll.delay(retry));
+			} while (waiting());
 
 			// action failed
+			retried(cmd, retry, System.nanoTime() - started);
 			info(selection, selectionCommand, false);
 			_waitFor = 0;				// wait timer expired
-			this.fail(new Exception(cmd + " failed at line " + tokenizer.lineno()));
+			this.fail(new Exception(cmd + " failed at line " + lineno));
 		}
 		protected abstract void run() throws Exception;
 		protected void fail(Exception e) throws Exception {
@@ -237,6 +331,24 @@ public class RunTests {
 	}
 	
     public RunTests() throws IOException {
+		this(new ScriptCache(), new BrowserPool(1), new Results());
+	}
+
+	// A session for one script of a parallel run, sharing the run's caches and results
+	private RunTests(RunTests run) throws IOException {
+		this(run.scripts, run.browsers, run.results);
+		keepGoing = run.keepGoing;
+		reruns = run.reruns;
+	}
+
+	private RunTests(ScriptCache scripts, BrowserPool browsers, Results results) throws IOException {
+		this.scripts = scripts;
+		this.browsers = browsers;
+		this.results = results;
+		registerCommands();
+		for (CommandLibrary library : ServiceLoader.load(CommandLibrary.class)) {
+			library.register(this);
+		}
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -245,195 +357,765 @@ public class RunTests {
     	System.exit(exitstatus);
 	}
 	
+	// Command line: [options] script ...
+	//   --script-cache <dir>    keep compiled scripts in <dir> for use by later runs
+	//   --trace <level>         quiet, commands (the default) or debug, see Trace
+	//   --parallel <n>          run the scripts in sessions of their own, n at a time
+	//   --shard <i>/<n>         run shard i (1 to n) of the scripts, see Shard
+	//   --timings <file>        shard using the durations in <file>, an unsharded run records them there
+	//   --merge-timings <file>  merge the results files given instead of scripts into timings <file>
+	//   --results <file>        write the outcome of each script to <file>, see Results
+	//   --daemon <port>         stay resident and run scripts sent to <port>, see serve
+	//   --watch                 run the scripts again when files they depend on change, see watch
+	//   --result-store <file>   skip scripts that passed with the same files and app version
+	//   --app-version <version> the version of the application under test, for --result-store
+	//   --keep-going            run every script, rather than stopping at the first failure
+	//   --retries <n>           run a failing script again, up to n times
+	//   --rerun-failed <file>   run the scripts that failed in results <file> and update it
 	public int run(String[] args) {
+		int parallel = 1;
+		int daemon = 0;
+		boolean watch = false;
+		int shard = 0, shards = 0;
+		File timingsFile = null, resultsFile = null, storeFile = null, rerunFile = null, mergeFile = null;
+		String appVersion = "";
+		List<String> files = new ArrayList<String>();
+		for (int a = 0; a < args.length; a++) {
+			if (args[a].equals("--trace") && a + 1 < args.length) {
+				try {
+					Trace.setLevel(args[++a]);
+				} catch (Exception e) {
+					System.err.println(e.getMessage());
+					return 2;
+				}
+				trace = Trace.at(Trace.COMMANDS);
+				continue;
+			}
+			if (args[a].equals("--script-cache") && a + 1 < args.length) {
+				scripts.setStore(new ScriptStore(new File(args[++a])));
+				continue;
+			}
+			if (args[a].equals("--parallel") && a + 1 < args.length) {
+				try {
+					parallel = Integer.parseInt(args[++a]);
+				} catch (NumberFormatException e) {
+					parallel = 0;
+				}
+				if (parallel < 1) {
+					System.err.println("--parallel should be followed by the number of sessions");
+					return 2;
+				}
+				continue;
+			}
+			if (args[a].equals("--shard") && a + 1 < args.length) {
+				String[] parts = args[++a].split("/");
+				try {
+					shard = Integer.parseInt(parts[0]);
+					shards = Integer.parseInt(parts[1]);
+				} catch (RuntimeException e) {
+					shards = 0;
+				}
+				if (shards < 1 || shard < 1 || shard > shards) {
+					System.err.println("--shard should be followed by <index>/<count>, index from 1 to count");
+					return 2;
+				}
+				continue;
+			}
+			if (args[a].equals("--timings") && a + 1 < args.length) {
+				timingsFile = new File(args[++a]);
+				continue;
+			}
+			if (args[a].equals("--merge-timings") && a + 1 < args.length) {
+				mergeFile = new File(args[++a]);
+				continue;
+			}
+			if (args[a].equals("--results") && a + 1 < args.length) {
+				resultsFile = new File(args[++a]);
+				continue;
+			}
+			if (args[a].equals("--daemon") && a + 1 < args.length) {
+				try {
+					daemon = Integer.parseInt(args[++a]);
+				} catch (NumberFormatException e) {
+					daemon = 0;
+				}
+				if (daemon < 1 || daemon > 65535) {
+					System.err.println("--daemon should be followed by a port number");
+					return 2;
+				}
+				continue;
+			}
+			if (args[a].equals("--watch")) {
+				watch = true;
+				continue;
+			}
+			if (args[a].equals("--result-store") && a + 1 < args.length) {
+				storeFile = new File(args[++a]);
+				continue;
+			}
+			if (args[a].equals("--app-version") && a + 1 < args.length) {
+				appVersion = args[++a];
+				continue;
+			}
+			if (args[a].equals("--keep-going")) {
+				keepGoing = true;
+				continue;
+			}
+			if (args[a].equals("--retries") && a + 1 < args.length) {
+				try {
+					reruns = Integer.parseInt(args[++a]);
+				} catch (NumberFormatException e) {
+					reruns = -1;
+				}
+				if (reruns < 0) {
+					System.err.println("--retries should be followed by the number of times to run a failing script again");
+					return 2;
+				}
+				continue;
+			}
+			if (args[a].equals("--rerun-failed") && a + 1 < args.length) {
+				rerunFile = new File(args[++a]);
+				keepGoing = true;
+				continue;
+			}
+			files.add(args[a]);
+		}
+		if (daemon > 0) {
+			browsers = new BrowserPool(parallel);
+			return serve(daemon, files);
+		}
+		if (null != mergeFile) {
+			return mergeTimings(mergeFile, files);
+		}
+		if (null != rerunFile) {
+			Results previous;
+			try {
+				previous = Results.load(rerunFile);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				return 2;
+			}
+			List<String> failed = new ArrayList<String>();
+			for (Results.Result result : previous.all()) {
+				if (Results.FAILED.equals(result.status) && (files.isEmpty() || files.contains(result.script))) {
+					failed.add(result.script);
+				}
+			}
+			Trace.out.println("// RERUN: " + failed.size() + " failed of " + previous.all().size() + " scripts in " + rerunFile);
+			files = failed;
+		}
+		if (shards > 0) {
+			Results timings = null;
+			try {
+				if (null != timingsFile) timings = Results.load(timingsFile);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				return 2;
+			}
+			int total = files.size();
+			files = Shard.select(files, shard, shards, timings);
+			Trace.out.println("// SHARD: " + shard + "/" + shards + " " + files.size() + " of " + total + " scripts"
+					+ (null == timings || timings.isEmpty() ? ", no timings, round robin" : ""));
+			if (null == resultsFile) {
+				resultsFile = new File("shard-" + shard + "-of-" + shards + ".results");
+			}
+		}
+		if (watch) {
+			browsers = new BrowserPool(parallel);
+			return watch(files, parallel);
+		}
+
+		// Skip the scripts that passed with the same files and app version
+		Results store = null;
+		LinkedHashMap<String, String> keys = new LinkedHashMap<String, String>();
+		if (null != storeFile) {
+			try {
+				store = Results.load(storeFile);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				return 2;
+			}
+			List<String> run = new ArrayList<String>();
+			for (String file : files) {
+				String key;
+				try {
+					key = storeKey(file, appVersion);
+				} catch (Exception e) {
+					run.add(file);			// can't be read, let the run report it
+					continue;
+				}
+				keys.put(file, key);
+				Results.Result stored = store.get(file);
+				if (null != stored && Results.PASSED.equals(stored.status) && key.equals(stored.key)) {
+					Trace.out.println("// CACHED: " + file + " passed before with the same files and app version");
+					results.record(file, Results.CACHED, stored.millis);
+				} else {
+					run.add(file);
+				}
+			}
+			files = run;
+		}
+		List<RunTests> sessions = new ArrayList<RunTests>();
+		int exitstatus;
+		if (parallel > 1 && files.size() > 1) {
+			browsers = new BrowserPool(parallel);
+			exitstatus = runParallel(files, parallel, sessions);
+		} else {
+			exitstatus = runSession(files);
+			sessions.add(this);
+		}
+		browsers.close();
+		try {
+			if (null != resultsFile) {
+				results.save(resultsFile);
+			}
+			if (null != timingsFile && 0 == shards) {			// shards only read it, see mergeTimings
+				Results timings = Results.load(timingsFile);
+				timings.merge(results);
+				timings.save(timingsFile);
+			}
+			if (null != rerunFile) {
+				Results previous = Results.load(rerunFile);
+				previous.merge(results);
+				previous.save(rerunFile);
+			}
+			if (null != store) {
+				for (Map.Entry<String, String> key : keys.entrySet()) {
+					Results.Result result = results.get(key.getKey());
+					if (null != result && !Results.CACHED.equals(result.status)) {
+						store.record(result.script, result.status, result.millis, key.getValue());
+					}
+				}
+				store.save(storeFile);
+			}
+		} catch (IOException e) {
+			System.err.println("could not save results: " + e.getMessage());
+			if (0 == exitstatus) exitstatus = 2;
+		}
+		summary(sessions);
+		Trace.flush();
+		return exitstatus;
+	}
+
+	// Merge the results files of the shards of a run into a timings file, for the next run to
+	// shard by.  Shards don't write the timings file themselves: every shard must compute its
+	// split from the same timings, and shards finishing together would lose each other's
+	// updates.
+	private int mergeTimings(File timingsFile, List<String> resultsFiles) {
+		try {
+			Results timings = Results.load(timingsFile);
+			for (String file : resultsFiles) {
+				timings.merge(Results.load(new File(file)));
+			}
+			timings.save(timingsFile);
+		} catch (IOException e) {
+			System.err.println("could not merge timings: " + e.getMessage());
+			return 2;
+		}
+		Trace.out.println("// TIMINGS: merged " + resultsFiles.size() + " results files into " + timingsFile);
+		Trace.flush();
+		return 0;
+	}
+
+	// Run scripts one after another in this session, so a script sees the functions and
+	// functions and browser left by the ones before it (see reset).  A failing script is run
+	// again up to reruns times, with the functions it was started with, a script that still
+	// fails stops the session unless keepGoing.
+	private int runSession(List<String> files) {
 		File source = null;
 		String onexit = "--onsuccess";
 		int exitstatus = 0;
-		int i = 0;
-    	try {
-    		while (i < args.length) {
-				source = runScript(args[i]);
-				++i;
-			}
-    	} catch (Exception e) {
-			System.out.println(args[i]);
-    		e.printStackTrace();
-    		onexit = "--onfail";
-    		exitstatus = 1;
-    	}
+		for (String file : files) {
+			HashMap<String, ExecutionContext> defined = new HashMap<String, ExecutionContext>(functions);
+			for (int attempt = 1; ; attempt++) {
+				reset();
+				if (attempt > 1) {
+					functions.clear();			// not those a failed attempt defined
+					functions.putAll(defined);
+				}
+				long started = System.nanoTime();
+				try {
+					source = runScript(file);
+					results.record(file, Results.PASSED, (System.nanoTime() - started) / 1000000L);
+					if (attempt > 1) Trace.out.println("// RETRY: " + file + " passed at attempt " + attempt);
+					break;
+				} catch (Exception e) {
+					results.record(file, Results.FAILED, (System.nanoTime() - started) / 1000000L);
+					Trace.out.println(file);
+					Trace.flush();
+					e.printStackTrace(err);
+					if (attempt > reruns) {
+						onexit = "--onfail";
+						exitstatus = 1;
+						break;
+					}
+					Trace.out.println("// RETRY: " + file + " failed, running it again (retry " + attempt + " of " + reruns + ")");
+				}
+			}
+			if (0 != exitstatus && !keepGoing) break;
+		}
     	
     	// If we have an onexit handler to call, then run it now
     	if (null != onexit) {
     		try {
 				executeFunction(onexit, source, null, null);
 			} catch (Exception e) {
-				e.printStackTrace();
+				Trace.flush();
+				e.printStackTrace(err);
 				exitstatus = 2;
 			}
     	}
     	
     	// Cleanup
+    	for (ProcessRunner.Job job : jobs) {
+    		if (job.isAlive()) {
+    			Trace.out.println("// exec: killing " + job.command + ", still running at exit");
+    			job.kill();
+    		}
+    	}
     	if (null != driver) {
-    		driver.quit();
+    		browsers.release(driver);
+    		driver = null;
     	}
-    	
     	return exitstatus;
 	}
-	
-	private void initTokenizer(StreamTokenizer tokenizer) {
-		tokenizer.quoteChar('"');
-		tokenizer.slashStarComments(true);
-		tokenizer.slashSlashComments(true);
-		tokenizer.whitespaceChars(' ', ' ');
-		tokenizer.whitespaceChars(0x09,0x09);
-		tokenizer.wordChars('$','$');		// treat $ as part of word
-		tokenizer.wordChars('#','#');		// treat # as part of word
-		tokenizer.wordChars('_','_');		// treat $# as part of word
+
+	// Put the interpreter state a script could leave behind back to its defaults: conditions,
+	// selection, wait timer and push stacks.  Done before each script is run (or run again),
+	// so a script that failed part way through doesn't change how the next one runs.  The
+	// browser, functions and defaults are kept.
+	private void reset() {
+		_if = _test = _skip = _not = _probe = false;
+		selection = null;
+		stype = SelectionType.None;
+		selector = null;
+		selectionCommand = null;
+		fieldId = null;
+		_waitFor = 0;
+		stacks.clear();
 	}
-	
-	private StreamTokenizer openScript(File file) throws IOException {
-		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
-		StreamTokenizer tokenizer = new StreamTokenizer(in);
-		initTokenizer(tokenizer);
-		return tokenizer;		
+
+	// Run each script in a session of its own (its own browser, functions, selection and
+	// wait timer), up to threads at a time.  Compiled scripts are shared, and browsers are
+	// reused by later scripts (see BrowserPool).  A script's output
+	// is captured and written in one piece when it finishes, so the output of scripts running
+	// at the same time isn't interleaved.  Every script is run, the exit status is the worst.
+	private int runParallel(List<String> files, int threads, final List<RunTests> sessions) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (final String file : files) {
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					RunTests session = new RunTests(RunTests.this);
+					synchronized (sessions) {
+						sessions.add(session);
+					}
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					Trace.capture(output);
+					int status;
+					try {
+						session.err = Trace.out;
+						Trace.out.println("// SCRIPT: " + file);
+						status = session.runSession(Collections.singletonList(file));
+						Trace.out.println("// SCRIPT: " + file + (status == 0 ? " passed" : " failed, exit status " + status));
+					} finally {
+						Trace.capture(null);
+					}
+					Trace.write(output.toByteArray());
+					return status;
+				}
+			}));
+		}
+		pool.shutdown();
+		int exitstatus = 0;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				exitstatus = Math.max(exitstatus, results.get(i).get());
+			} catch (Exception e) {
+				Trace.out.println(files.get(i));
+				Trace.flush();
+				e.printStackTrace();
+				exitstatus = 2;
+			}
+		}
+		return exitstatus;
 	}
 	
-	private StreamTokenizer openString(String code) {
-		// StreamTokenizer tokenizer = new StreamTokenizer(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(code.getBytes()))));
-		StreamTokenizer tokenizer = new StreamTokenizer(new CharArrayReader(code.toCharArray()));
-		initTokenizer(tokenizer);
-		return tokenizer;		
+	// Stay resident, running the scripts sent by clients (see tools/send.sh) so that they
+	// start with a warm JVM, compiled scripts and browsers.  The libraries are run once, at
+	// startup, and the functions they define are given to every request.
+	//
+	// Scripts run as the user running the daemon and can run commands (exec), so a request
+	// must start with the token the daemon writes, when it starts, to a file only that user
+	// can read: ~/.scriptdriver/daemon-<port>.token (see tools/send.sh).
+	//
+	// A client connects to the port on the loopback interface and sends a line with the token,
+	// then a line of tab separated script paths (resolved against the daemon's directory), or
+	// --stop.  The scripts are run one after another in a session of their own, as by a run
+	// without --parallel, and the trace is sent back as it is written, followed by a line
+	// "// EXIT: <status>".  Requests are served concurrently.  --stop stops accepting requests,
+	// and the daemon exits when those already running have finished.
+	private int serve(int port, List<String> libraries) {
+		final ServerSocket server;
+		try {
+			server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		} catch (IOException e) {
+			System.err.println("--daemon: " + e.getMessage());
+			return 2;
+		}
+		final File tokenFile = new File(System.getProperty("user.home"), ".scriptdriver/daemon-" + port + ".token");
+		final String token;
+		try {
+			token = writeToken(tokenFile);
+		} catch (IOException e) {
+			System.err.println("--daemon: could not write " + tokenFile + ": " + e.getMessage());
+			return 2;
+		}
+		for (String library : libraries) {
+			try {
+				runScript(library);
+			} catch (Exception e) {
+				Trace.out.println(library);
+				Trace.flush();
+				e.printStackTrace();
+				return 2;
+			}
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("daemon browsers") {
+			@Override
+			public void run() {
+				tokenFile.delete();
+				browsers.close();
+			}
+		});
+		Trace.out.println("// DAEMON: listening on " + server.getLocalSocketAddress() + ", " + functions.size() + " functions");
+		Trace.flush();
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			for (;;) {
+				final Socket client = server.accept();
+				pool.execute(new Runnable() {
+					public void run() {
+						serve(client, server, token);
+					}
+				});
+			}
+		} catch (IOException e) {
+			// closed by --stop
+		}
+
+		// Let requests still running finish before their browsers are closed
+		pool.shutdown();
+		try {
+			if (!pool.awaitTermination(DAEMON_STOP_WAIT, TimeUnit.SECONDS)) {
+				Trace.out.println("// DAEMON: requests still running after " + DAEMON_STOP_WAIT + " seconds, closing browsers");
+			}
+		} catch (InterruptedException e) {
+			// stop now
+		}
+		tokenFile.delete();
+		browsers.close();
+		Trace.out.println("// DAEMON: stopped");
+		Trace.flush();
+		return 0;
+	}
+
+	private void serve(Socket client, ServerSocket server, String token) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			String line = in.readLine();
+			if (null == line || !MessageDigest.isEqual(token.getBytes("UTF-8"), line.getBytes("UTF-8"))) {
+				client.getOutputStream().write("// DAEMON: not authorized, see ~/.scriptdriver\n// EXIT: 2\n".getBytes("UTF-8"));
+				return;
+			}
+			line = in.readLine();
+			if (null == line) return;
+			List<String> files = new ArrayList<String>();
+			for (String arg : line.split("\t")) {
+				if (arg.length() > 0) files.add(arg);
+			}
+			RunTests session = new RunTests(this);
+			session.functions.putAll(functions);
+			session.err = Trace.out;
+			int status = 2;
+			Trace.capture(client.getOutputStream());
+			try {
+				if (files.size() == 1 && files.get(0).equals("--stop")) {
+					Trace.out.println("// DAEMON: stopping");
+					server.close();
+					status = 0;
+				} else {
+					status = session.runSession(files);
+					summary(Collections.singletonList(session));
+				}
+			} finally {
+				Trace.out.println("// EXIT: " + status);
+				Trace.capture(null);
+			}
+		} catch (IOException e) {
+			// client has gone
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	// A new random token, written to a file only this user can read
+	private static String writeToken(File file) throws IOException {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		Path dir = file.getParentFile().toPath();
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			Files.createDirectories(dir);
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+		}
+		Files.write(path, token.toString().getBytes("UTF-8"));
+		return token.toString();
+	}
+
+	// Run the scripts, then run again each script whose files (see Dependencies) change, until
+	// interrupted.  Every script runs in a session of its own, as with --parallel, so a script
+	// run again on its own behaves as it did in the first run, and browsers are kept warm
+	// between runs.  Changes arriving close together are run as one.
+	private int watch(List<String> files, int threads) {
+		final WatchService watcher;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			System.err.println("--watch: " + e.getMessage());
+			return 2;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("watch browsers") {
+			@Override
+			public void run() {
+				browsers.close();
+			}
+		});
+		HashMap<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+		HashMap<String, Set<File>> depends = new HashMap<String, Set<File>>();
+		List<String> run = files;
+		try {
+			for (;;) {
+				List<RunTests> sessions = new ArrayList<RunTests>();
+				runParallel(run, threads, sessions);
+				summary(sessions);
+				int failed = 0;
+				for (String file : run) {
+					Results.Result result = results.get(file);
+					if (null == result || !Results.PASSED.equals(result.status)) failed++;
+				}
+
+				// A script run again may include different files now
+				for (String file : run) {
+					Set<File> dependencies = Dependencies.of(new File(file), scripts);
+					depends.put(file, dependencies);
+					for (File dependency : dependencies) {
+						File dir = dependency.getParentFile();
+						if (!dir.isDirectory() || dirs.containsValue(dir.toPath())) continue;
+						dirs.put(dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir.toPath());
+					}
+				}
+				Trace.out.println("// WATCH: " + (run.size() - failed) + " passed, " + failed + " failed, watching " + dirs.size() + " directories");
+				Trace.flush();
+
+				run = new ArrayList<String>();
+				while (run.isEmpty()) {
+					Set<File> changed = new HashSet<File>();
+					boolean overflow = false;
+					WatchKey key = watcher.take();
+					do {
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+								overflow = true;
+							} else {
+								changed.add(dirs.get(key).resolve((Path) event.context()).toFile());
+							}
+						}
+						key.reset();
+						key = watcher.poll(WATCH_SETTLE, TimeUnit.MILLISECONDS);
+					} while (null != key);
+					for (String file : files) {
+						Set<File> dependencies = depends.get(file);
+						if (overflow || !Collections.disjoint(dependencies, changed)) run.add(file);
+					}
+				}
+				Trace.out.println("// WATCH: changed, running " + run.size() + " of " + files.size() + " scripts");
+			}
+		} catch (IOException e) {
+			System.err.println("--watch: " + e.getMessage());
+			return 2;
+		} catch (InterruptedException e) {
+			return 0;
+		} finally {
+			browsers.close();
+			Trace.flush();
+		}
 	}
 
+	// Print engine statistics for the run
+	private void summary(List<RunTests> sessions) {
+		Trace.out.println("// SUMMARY: script cache " + scripts.hits() + " hits, " + scripts.misses() + " misses");
+		if (scripts.outputHits() + scripts.outputMisses() > 0) {
+			Trace.out.println("// SUMMARY: exec-include cache " + scripts.outputHits() + " hits, " + scripts.outputMisses() + " misses");
+		}
+		ScriptStore store = scripts.getStore();
+		if (null != store) {
+			Trace.out.println("// SUMMARY: compiled scripts " + store.loaded() + " loaded, " + store.written() + " written");
+		}
+		if (browsers.reused() > 0) {
+			Trace.out.println("// SUMMARY: browsers " + browsers.started() + " started, " + browsers.reused() + " reused");
+		}
+		long hits = 0, misses = 0;
+		TreeMap<String, long[]> retried = new TreeMap<String, long[]>();
+		for (RunTests session : sessions) {
+			hits += session.selections.hits();
+			misses += session.selections.misses();
+			for (Map.Entry<String, long[]> entry : session.retries.entrySet()) {
+				long[] stats = retried.get(entry.getKey());
+				if (null == stats) {
+					stats = new long[3];
+					retried.put(entry.getKey(), stats);
+				}
+				for (int i = 0; i < stats.length; i++) {
+					stats[i] += entry.getValue()[i];
+				}
+			}
+		}
+		if (hits + misses > 0) {
+			Trace.out.println("// SUMMARY: selection cache " + hits + " hits, " + misses + " misses, " + (hits * 100 / (hits + misses)) + "% hit rate");
+		}
+		for (Map.Entry<String, long[]> entry : retried.entrySet()) {
+			long[] stats = entry.getValue();
+			Trace.out.println("// SUMMARY: retries " + entry.getKey() + " " + stats[0] + " retried, " + stats[1] + " retries, " + (stats[2] / 1000000L) / 1000.0 + "s waiting");
+		}
+	}
+	
 	private File runScript(String filename) throws Exception {
-		File file = new File(filename);
-		StreamTokenizer tokenizer = openScript(file);
+		File file = new File(filename).getAbsoluteFile();
+		runScript(scripts.get(file), file, file.getName(), new ExecutionContext());
+		return file;
+	}
+	
+	// Evaluate a compiled script, running each command in turn.
+	private void runScript(Script code, File file, String source, ExecutionContext script) throws Exception {
+		runScript(new TokenStream(code), file, source, script);
+	}
+	
+	private void runScript(TokenStream tokenizer, File file, String source, ExecutionContext script) throws Exception {
 		while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
 			if (tokenizer.ttype == StreamTokenizer.TT_WORD) {
-				runCommand(tokenizer, file, file.getName(), new ExecutionContext());
+				runCommand(tokenizer, file, source, script);
+			} else if (tokenizer.ttype == '{') {
+				runScript(tokenizer.block(), file, source, script);
 			}
 		}
-		return file;
 	}
 	
-	private boolean executeFunction(String name, File file, StreamTokenizer parent, ExecutionContext script) throws Exception {
+	private boolean executeFunction(String name, File file, TokenStream parent, ExecutionContext script) throws Exception {
 		ExecutionContext context = functions.get(name);
 		if (null != context) {
 			// If this context has parameters then gather argument values
 			if (null != parent && null != script) {
 				List<String> params = context.getParams();
 				if (null != params && params.size() > 0) {
-					context.clearArgs();
-					int count = params.size();
-					while (count-- > 0) {
+					Object[] args = new Object[params.size()];
+					for (int i = 0; i < args.length; i++) {
 						// get argument
 						parent.nextToken();
-						System.out.print(' ');
+						trace.print(' ');
 						switch(parent.ttype) {
 						case StreamTokenizer.TT_NUMBER:
-							System.out.print(parent.nval);
-							context.addArg(parent.nval);
+							trace.print(parent.nval);
+							args[i] = parent.nval;
 							break;
 						default:
-							System.out.print(parent.sval);
-							context.addArg(script.getExpandedString(parent));
+							trace.print(parent.sval);
+							args[i] = script.getExpandedString(parent);
 							break;
 						}
 					}
+					context = context.call(args);
 				}
-				System.out.println();
+				trace.println();
 			}
 			
 			// Get function body and execute it
-			String code = context.getBody();
+			Script code = context.getBody();
 			if (null != code) {
-				StreamTokenizer tokenizer = openString(code);
-				while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
-					if (tokenizer.ttype == StreamTokenizer.TT_WORD) {
-						runCommand(tokenizer, file, name, context);
-					}
-				}		
+				runScript(code, file, name, context);
 				return true;
 			}
 		}
 		return false;
 	}
 	
-	private boolean runString(String source, File file, String cmd) throws Exception {
-		StreamTokenizer tokenizer = openString(source);
-		while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD) {
-				runCommand(tokenizer, file, cmd, null);
-			}
-		}
-		return true;		
-	}
-	
 	// Argument parsing: { token token { token token } token }
 	
 	private interface BlockHandler {
-		void parseToken(StreamTokenizer tokenizer, String arg) throws IOException;
+		void parseToken(Token token, String arg) throws IOException;
 	}
 
-	private void parseBlock(ExecutionContext script, StreamTokenizer tokenizer, BlockHandler handler) throws Exception {
+	private void parseBlock(ExecutionContext script, TokenStream tokenizer, BlockHandler handler) throws Exception {
 		tokenizer.nextToken();
 		if (tokenizer.ttype == '{') {
-			int braceLevel = 1;
-			System.out.print(" {");
-			tokenizer.eolIsSignificant(true);
-			tokenizer.nextToken();
-			while (tokenizer.ttype == StreamTokenizer.TT_WORD 
-					|| tokenizer.ttype == '"' 
-					|| tokenizer.ttype == StreamTokenizer.TT_NUMBER 
-					|| tokenizer.ttype == '\n'
-					|| tokenizer.ttype == '{'
-					|| tokenizer.ttype == '}'
-					|| tokenizer.ttype == ','
-					|| tokenizer.ttype == '*'
-					|| tokenizer.ttype == ':'
-			) {
-				System.out.print(' ');
-				String arg;
-				switch(tokenizer.ttype) {
-				case '{':
-					braceLevel ++;
-					arg = "{";
-					break;
-				case '}': 
-					if (--braceLevel == 0) {
-						System.out.print("}");
-						tokenizer.eolIsSignificant(false);
-						return;
-					}
-					arg = "}";
-					break;
-				case StreamTokenizer.TT_NUMBER: 
-					arg = String.valueOf(tokenizer.nval); 
-					break;
-				case StreamTokenizer.TT_EOL:    
-					arg = "\n"; 
-					break;
-				case '"':
-					// 5 backslashed required in replace string because its processed once
-					// as a string (yielding \\") and then again by the replace method
-					// of the regular expression (so \\" becomes \")
-					arg = '"' + script.getExpandedString(tokenizer).replaceAll("\"", "\\\\\"") + '"';
-					break;
-				case ',': arg = ","; break;
-				case ':': arg = ":"; break;
-				case '*': arg = "*"; break;
-				default:
-					arg = script.getExpandedString(tokenizer);
-				}
-				System.out.print(arg);
-				handler.parseToken(tokenizer, arg);
-				tokenizer.nextToken();
-			}
-			System.out.println();			
-			throw new Exception("args unexpectd token " + tokenizer.ttype);
+			trace.print(" {");
+			parseBlock(script, tokenizer.block(), handler);
+			trace.print(" }");
+			return;
 		}
 		tokenizer.pushBack();		// no arguments
 	}
+
+	private void parseBlock(ExecutionContext script, Script block, BlockHandler handler) throws Exception {
+		for (Token token : block.tokens) {
+			trace.print(' ');
+			String arg;
+			switch(token.ttype) {
+			case '{':
+				trace.print("{");
+				handler.parseToken(token, "{");
+				parseBlock(script, token.block, handler);
+				trace.print(" }");
+				handler.parseToken(new Token('}', null, 0, token.lineno, null), "}");
+				continue;
+			case StreamTokenizer.TT_NUMBER: 
+				arg = String.valueOf(token.nval); 
+				break;
+			case '"':
+				// 5 backslashed required in replace string because its processed once
+				// as a string (yielding \\") and then again by the replace method
+				// of the regular expression (so \\" becomes \")
+				arg = '"' + script.getExpandedString(token).replaceAll("\"", "\\\\\"") + '"';
+				break;
+			case ',': arg = ","; break;
+			case ':': arg = ":"; break;
+			case '*': arg = "*"; break;
+			case StreamTokenizer.TT_WORD:
+				arg = script.getExpandedString(token);
+				break;
+			default:
+				trace.println();
+				throw new Exception("args unexpectd token " + token.ttype + " at line " + token.lineno);
+			}
+			trace.print(arg);
+			handler.parseToken(token, arg);
+		}
+	}
 	
 	private class Block implements BlockHandler {
 		char sep = ' ';
@@ -444,19 +1126,19 @@ public class RunTests {
 			this.isep = this.sep = sep;
 			this.quoteWords = quoteWords;
 		}
-		public void parseToken(StreamTokenizer tokenizer, String arg) {
-			if (quoteWords && tokenizer.ttype == StreamTokenizer.TT_WORD) {
+		public void parseToken(Token token, String arg) {
+			if (quoteWords && token.ttype == StreamTokenizer.TT_WORD) {
 				arg = '"' + arg + '"';
 			}
-			if (tokenizer.ttype == ',') {
+			if (token.ttype == ',') {
 				sep = ',';	// next word joined by comma
 				return;
 			}
-			if (tokenizer.ttype == ':') {
+			if (token.ttype == ':') {
 				sep = ':';
 				return;
 			}
-			if (tokenizer.ttype == '*') {
+			if (token.ttype == '*') {
 				arg = "*";
 			}
 			args = args == null ? arg : args + sep + arg;
@@ -469,8 +1151,8 @@ public class RunTests {
 
 	private class ArgArray implements BlockHandler {
 		List<String> args = new ArrayList<String>();
-		public void parseToken(StreamTokenizer tokenizer, String arg) {
-			if (tokenizer.ttype == '"' || tokenizer.ttype == '\'') {
+		public void parseToken(Token token, String arg) {
+			if (token.ttype == '"' || token.ttype == '\'') {
 				arg = arg.substring(1,arg.length()-1);
 			}
 			args.add(arg);
@@ -480,45 +1162,58 @@ public class RunTests {
 		}
 	};
 
-	private String getBlock(ExecutionContext script, StreamTokenizer tokenizer, char sep, boolean quoteWords) throws Exception {
+	private String getBlock(ExecutionContext script, TokenStream tokenizer, char sep, boolean quoteWords) throws Exception {
 		Block block = new Block(sep, quoteWords);
 		parseBlock(script, tokenizer, block);
 		return block.get();
 	}
 
-	private List<String> getArgs(StreamTokenizer tokenizer, ExecutionContext script) throws Exception {
+	private List<String> getArgs(TokenStream tokenizer, ExecutionContext script) throws Exception {
 		ArgArray args = new ArgArray();
 		parseBlock(script, tokenizer, args);
 		return args.get();
 	}
+
+	// Body parsing: { commands ... }.  The block is already compiled, when defining an alias or
+	// function any arguments of the defining context are bound into a copy of the body.
+	private Script getBody(ExecutionContext script, TokenStream tokenizer, boolean bind) throws Exception {
+		tokenizer.nextToken();
+		if (tokenizer.ttype == '{') {
+			Script body = bind ? script.expand(tokenizer.block()) : tokenizer.block();
+			if (Trace.enabled(Trace.COMMANDS)) trace.print(" { " + body + " }");
+			return body;
+		}
+		tokenizer.pushBack();		// no body
+		return null;
+	}
 	
 	// Param parsing: (name, name, name)
 
 	private interface ParamHandler {
-		void processParam(StreamTokenizer tokenizer, String arg) throws IOException;
+		void processParam(TokenStream tokenizer, String arg) throws IOException;
 	}
 
-	private void parseParams(StreamTokenizer tokenizer, ParamHandler handler) throws Exception {
+	private void parseParams(TokenStream tokenizer, ParamHandler handler) throws Exception {
 		tokenizer.nextToken();
 		if (tokenizer.ttype == '(') {
-			System.out.print(" (");
+			trace.print(" (");
 			tokenizer.nextToken();
 			while (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == ',' || tokenizer.ttype == ')') {
-				System.out.print(' ');
+				trace.print(' ');
 				String arg;
 				switch(tokenizer.ttype){ 
 				case ',': arg = ","; break;
 				case ')':
-					System.out.print(")");
+					trace.print(")");
 					return;
 				default:
 					arg = tokenizer.sval;
 				}
-				System.out.print(arg);
+				trace.print(arg);
 				handler.processParam(tokenizer, arg);
 				tokenizer.nextToken();
 			}
-			System.out.println();			
+			trace.println();			
 			throw new Exception("args unexpectd token " + tokenizer.ttype);
 		}
 		tokenizer.pushBack();		// no arguments
@@ -528,7 +1223,7 @@ public class RunTests {
 		List<String> args = new ArrayList<String>();
 		public Params() {
 		}
-		public void processParam(StreamTokenizer tokenizer, String arg) throws IOException {
+		public void processParam(TokenStream tokenizer, String arg) throws IOException {
 			if (!arg.equals(",")) {
 				args.add(arg);
 			}
@@ -538,214 +1233,1121 @@ public class RunTests {
 		}
 	};
 	
-	private List<String> getParams(StreamTokenizer tokenizer) throws Exception {
+	private List<String> getParams(TokenStream tokenizer) throws Exception {
 		Params params = new Params();
 		parseParams(tokenizer, params);
 		return params.get();
 	}
 		
-	private void runCommand(final StreamTokenizer tokenizer, File file, String source, ExecutionContext script) throws Exception {
-		// Automatic log dumping
-		if (autolog && null != driver) {
-			dumpLog();
+	// A statement being run: the command verb, the token stream its arguments are read from and
+	// the context (script file, source name and function arguments) it is running in.
+	public class Statement {
+		final String cmd;
+		final TokenStream tokenizer;
+		final File file;
+		final String source;
+		final ExecutionContext script;
+		final int lineno;
+		Statement(String cmd, TokenStream tokenizer, File file, String source, ExecutionContext script) {
+			this.cmd = cmd;
+			this.tokenizer = tokenizer;
+			this.file = file;
+			this.source = source;
+			this.script = script;
+			this.lineno = tokenizer.lineno();
 		}
-		
-		String cmd = tokenizer.sval;
-		System.out.printf((new Date()).getTime() + ": [%s,%d] ", source, tokenizer.lineno());
-		System.out.print(tokenizer.sval);
-		
-		if (cmd.equals("version")) {
-			// HELP: version
-			System.out.println();
-			System.out.println("ScriptDriver version " + version);
-			return;
+		public String getCommand() {
+			return cmd;
 		}
-
-		if (cmd.equals("browser")) {
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				System.out.print(' ');
-				System.out.print(tokenizer.sval);
-				
-				if (tokenizer.sval.equals("prefs")) {
-					// HELP: browser prefs ...
-					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-						System.out.print(' ');
-						System.out.print(tokenizer.sval);
-						String pref = tokenizer.sval;
-						tokenizer.nextToken();
-						System.out.print(' ');
-						if (_skip) return;
-						if (null == options) options = new ChromeOptions();
-						if (null == prefs) prefs = new HashMap<String, Object>();
-						switch(tokenizer.ttype) {
-						case StreamTokenizer.TT_WORD:
-						case '"':
-							System.out.println(tokenizer.sval);
-							if (tokenizer.sval.equals("false")) {
-								prefs.put(pref, false);
-							} else if (tokenizer.sval.equals("true")) {
-								prefs.put(pref, true);
-							} else {
-								prefs.put(pref, tokenizer.sval);
+		public TokenStream getTokens() {
+			return tokenizer;
+		}
+		public File getFile() {
+			return file;
+		}
+		public int lineno() {
+			return lineno;
+		}
+		// The current token, with any function arguments expanded
+		public String getExpandedString() {
+			return script.getExpandedString(tokenizer);
+		}
+		public double getExpandedNumber() {
+			return script.getExpandedNumber(tokenizer);
+		}
+	}
+
+	// Register a command against a verb, replacing any existing command of that name.
+	public void register(String verb, Command command) {
+		commands.put(verb, command);
+	}
+
+	public ChromeDriver getDriver() {
+		return driver;
+	}
+
+	public RemoteWebElement getSelection() {
+		return selection;
+	}
+
+	// true while skipping the commands of an if/then/else branch not taken
+	public boolean isSkipping() {
+		return _skip;
+	}
+
+	private void runCommand(final TokenStream tokenizer, File file, String source, ExecutionContext script) throws Exception {
+		// Automatic log dumping
+		if (autolog && null != driver) {
+			dumpLog();
+		}
+
+		String cmd = tokenizer.sval;
+		traceCommand(source, tokenizer.lineno(), cmd);
+
+		Command command = commands.get(cmd);
+		if (null != command) {
+			command.parse(new Statement(cmd, tokenizer, file, source, script)).execute();
+			return;
+		}
+
+		if (functions.containsKey(cmd)) {
+			executeFunction(cmd, file, tokenizer, script);
+			return;
+		}
+
+		if (null == driver) {
+			throw new Exception("browser start must be used before attempt to interract with the browser");
+		}
+
+		trace.println();
+		throw new Exception("unrecognised command, " + cmd);
+	}
+
+	private void traceCommand(String source, int lineno, String cmd) {
+		if (Trace.enabled(Trace.COMMANDS)) {
+			trace.print(System.currentTimeMillis() + ": [" + source + "," + lineno + "] " + cmd);
+		}
+	}
+
+	// Optional timeout <seconds> argument, returned in ms (0 for none).  Leaves the following
+	// token current.
+	private long parseTimeout(Statement s) throws Exception {
+		TokenStream tokenizer = s.tokenizer;
+		if (tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("timeout")) {
+			tokenizer.nextToken();
+			double seconds = s.getExpandedNumber();
+			if (Trace.enabled(Trace.COMMANDS)) trace.print(" timeout " + seconds);
+			tokenizer.nextToken();
+			return (long) (seconds * 1000);
+		}
+		return 0;
+	}
+
+	// Commands are relative to the script that runs them
+	private File resolve(File file, String command) throws IOException {
+		return new File(command.startsWith("/")
+							? command
+							: file.getParentFile().getCanonicalPath() + "/" + command
+						);
+	}
+
+	// Run a command to completion and compile its output
+	private Script compileOutput(File include, List<String> arguments, long timeout) throws Exception {
+		ProcessRunner.Job job = ProcessRunner.start(arguments, timeout, false);
+		try {
+			Script output = Script.compile(include.getName(), new BufferedReader( new InputStreamReader( job.getOutput() ) ));
+			int exitStatus = job.waitFor();
+			if (exitStatus != 0) {
+				throw new Exception("exec-include command returned failure status " + exitStatus);
+			}
+			return output;
+		} finally {
+			if (job.isAlive()) job.kill();
+		}
+	}
+
+	// The key of a memoized exec-include: the command (and when it was last changed), its
+	// arguments, and the content of each of its declared input files
+	private String outputKey(File file, File include, List<String> arguments, List<String> inputs) throws Exception {
+		StringBuilder key = new StringBuilder();
+		key.append(include.lastModified());
+		for (String arg : arguments) {
+			key.append('\0').append(arg);
+		}
+		for (String input : inputs) {
+			File path = resolve(file, input);
+			key.append('\0').append(path.getCanonicalPath()).append('=').append(sha1(path));
+		}
+		return key.toString();
+	}
+
+	// The key of a script in a result store: the app version and the path and content of each
+	// file the script depends on (see Dependencies)
+	private String storeKey(String filename, String appVersion) throws Exception {
+		StringBuilder key = new StringBuilder(appVersion);
+		for (File file : Dependencies.of(new File(filename), scripts)) {
+			key.append('\0').append(file.getPath()).append('=').append(file.isFile() ? sha1(file) : "missing");
+		}
+		return sha1(key.toString().getBytes("UTF-8"));
+	}
+
+	private static String sha1(File file) throws Exception {
+		return sha1(Files.readAllBytes(file.toPath()));
+	}
+
+	private static String sha1(byte[] bytes) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	// Evaluate the condition of an until loop.  The condition's commands are run as probes:
+	// they make a single attempt and, rather than throwing, a failure clears _test and skips
+	// the rest of the condition.
+	private boolean probe(Script condition, Statement s) throws Exception {
+		_probe = true;
+		_test = true;
+		try {
+			runScript(condition, s.file, "until", s.script);
+			return _test;
+		} finally {
+			_probe = false;
+			_skip = false;
+			_not = false;
+		}
+	}
+
+	private void probeFailed() {
+		_test = false;
+		_skip = true;
+	}
+
+	// Wait for all the commands started by exec async, failing if any of them failed
+	private void waitForJobs() throws Exception {
+		String failures = null;
+		for (ProcessRunner.Job job : jobs) {
+			String failure = null;
+			try {
+				int exitStatus = job.waitFor();
+				if (exitStatus != 0) failure = job.command + " returned failure status " + exitStatus;
+			} catch (Exception e) {
+				failure = e.getMessage();
+			}
+			if (null != failure) {
+				Trace.out.println("// exec wait: " + failure);
+				failures = null == failures ? failure : failures + ", " + failure;
+			}
+		}
+		jobs.clear();
+		if (null != failures) {
+			throw new Exception("exec wait: " + failures);
+		}
+	}
+
+	private void requireBrowser() throws Exception {
+		if (null == driver) {
+			trace.println();
+			throw new Exception("browser start must be used before attempt to interract with the browser");
+		}
+	}
+
+	private void registerCommands() {
+		registerScriptCommands();
+		registerBrowserCommands();
+		registerSelectionCommands();
+		registerCheckCommands();
+	}
+
+	// Script commands: definitions, flow control, includes, external commands and settings
+	private void registerScriptCommands() {
+		register("version", new Command() {
+			public Node parse(Statement s) {
+				// HELP: version
+				trace.println();
+				return new Node() {
+					public void execute() {
+						Trace.out.println("ScriptDriver version " + version);
+					}
+				};
+			}
+		});
+
+		Command function = new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: alias <name> { body }
+				// HELP: function <name> (param, ...) { body }
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					trace.print(' ');
+					trace.print(tokenizer.sval);
+					final String name = tokenizer.sval;
+					final List<String> params = getParams(tokenizer);
+					final Script body = getBody(s.script, tokenizer, true);
+					trace.println();
+					return new Node() {
+						public void execute() {
+							if (!_skip) addFunction(name, params, body);		// add alias
+						}
+					};
+				}
+				trace.println();
+				throw new Exception("alias name expected");
+			}
+		};
+		register("alias", function);
+		register("function", function);
+
+		register("while", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: while { block }
+				final Script block = getBody(s.script, s.tokenizer, false);
+				trace.println();
+				return new Node() {
+					public void execute() {
+						if (_skip || null == block) return;
+						boolean exitloop = false;
+						while (!exitloop) {
+							try {
+								runScript(block, s.file, "while", s.script);
+							} catch(Exception e) {
+								exitloop = true;
 							}
-							return;
-						case StreamTokenizer.TT_NUMBER:
-							System.out.println(tokenizer.nval);
-							prefs.put(pref, tokenizer.nval);
-							return;
 						}
 					}
-					System.out.println();
-					throw new Exception("browser option command argument missing");
+				};
+			}
+		});
+
+		register("repeat", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: repeat <count> { block }
+				s.tokenizer.nextToken();
+				final int count = (int) s.getExpandedNumber();
+				if (Trace.enabled(Trace.COMMANDS)) trace.print(" " + count);
+				final Script block = getBody(s.script, s.tokenizer, false);
+				trace.println();
+				if (null == block) {
+					throw new Exception("repeat requires a block at line " + s.lineno);
 				}
-				
-				if (tokenizer.sval.equals("option")) {
-					// HELP: browser option ...
+				return new Node() {
+					public void execute() throws Exception {
+						if (_skip) return;
+						for (int i = 0; i < count; i++) {
+							runScript(block, s.file, "repeat", s.script);
+						}
+					}
+				};
+			}
+		});
+
+		register("until", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: until [max <iterations>] [timeout <seconds>] { condition } { block }
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				int limit = MAX_ITERATIONS;
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("max")) {
 					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {		// expect a quoted string
-						System.out.print(' ');
-						System.out.println(tokenizer.sval);
+					limit = (int) s.getExpandedNumber();
+					if (Trace.enabled(Trace.COMMANDS)) trace.print(" max " + limit);
+					tokenizer.nextToken();
+				}
+				final int max = limit;
+				final long timeout = parseTimeout(s);
+				tokenizer.pushBack();
+				final Script condition = getBody(s.script, tokenizer, false);
+				final Script block = getBody(s.script, tokenizer, false);
+				trace.println();
+				if (null == condition || null == block) {
+					throw new Exception("until requires a condition and a block at line " + s.lineno);
+				}
+				return new Node() {
+					public void execute() throws Exception {
 						if (_skip) return;
-						if (null == options) options = new ChromeOptions();
-						options.addArguments(tokenizer.sval);
-						return;
+						long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0;
+						for (int i = 0; i < max; i++) {
+							if (probe(condition, s)) return;
+							if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+								throw new Exception("until condition not met after " + (timeout / 1000.0) + " seconds at line " + s.lineno);
+							}
+							runScript(block, s.file, "until", s.script);
+						}
+						if (probe(condition, s)) return;
+						throw new Exception("until condition not met after " + max + " iterations at line " + s.lineno);
 					}
-					System.out.println();
-					throw new Exception("browser option command argument missing");
+				};
+			}
+		});
+
+		register("include", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: include <script>
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final String path = tokenizer.sval;
+					trace.print(' ');
+					trace.println(path);
+					return new Node() {
+						public void execute() throws Exception {
+							if (_skip) return;
+							File include = new File(
+									path.startsWith("/")
+									? path
+									: s.file.getParentFile().getCanonicalPath() + "/" + path
+								);
+							runScript(include.getCanonicalPath());
+						}
+					};
 				}
-				
-				// HELP: browser wait <seconds>
-				if (tokenizer.sval.equals("wait")) {
+				throw new Exception("include argument should be a quoted filename");
+			}
+		});
+
+		register("exec", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: exec [async] [timeout <seconds>] <command> { args ... }
+				// HELP: exec wait
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("wait")) {
+					trace.println(" wait");
+					return new Node() {
+						public void execute() throws Exception {
+							waitForJobs();
+						}
+					};
+				}
+				boolean async = false;
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("async")) {
+					trace.print(" async");
+					async = true;
 					tokenizer.nextToken();
-					double nval = script.getExpandedNumber(tokenizer);
-					System.out.print(' ');
-					System.out.println(nval);
-					if (_skip) return;
-					driver.manage().timeouts().implicitlyWait((long)(tokenizer.nval * 1000), TimeUnit.MILLISECONDS);
-					return;
 				}
-				
-				if (tokenizer.sval.equals("start")) {
-					// HELP: browser start
-					System.out.println();
-					if (null == driver) {
-						// https://sites.google.com/a/chromium.org/chromedriver/capabilities
-						DesiredCapabilities capabilities = DesiredCapabilities.chrome();
-						LoggingPreferences logs = new LoggingPreferences();
-						logs.enable(LogType.BROWSER, Level.ALL);
-						capabilities.setCapability(CapabilityType.LOGGING_PREFS, logs);
-						if (null == options) options = new ChromeOptions();
-						if (null == prefs) prefs = new HashMap<String, Object>();
-						options.setExperimentalOption("prefs", prefs);
-						options.merge(capabilities);
-    					driver = new ChromeDriver(options);
-	    				driver.setLogLevel(Level.ALL);
-	    				actions = new Actions(driver);			// for advanced actions
-	    			}
-	    			return;
-				}
-
-				if (null == driver) {
-					System.out.println();
-					throw new Exception("browser start must be used before attempt to interract with the browser");
-				}
-				
-				if (tokenizer.sval.equals("get")) {
-					// HELP: browser get "url"
+				long timeout = parseTimeout(s);
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					String command = tokenizer.sval;
+					trace.print(' ');
+					trace.print(command);
+					final List<String> args = getArgs(tokenizer, s.script);
+					final File include = resolve(s.file, command);
+					final boolean background = async;
+					final long limit = timeout;
+					return new Node() {
+						public void execute() throws Exception {
+							String command = include.getCanonicalPath();
+							trace.println(command);
+							List<String> arguments = new ArrayList<String>();
+							arguments.add(command);
+							arguments.addAll(args);
+							ProcessRunner.Job job = ProcessRunner.start(arguments, limit, true);
+							if (background) {
+								jobs.add(job);
+								return;
+							}
+							int exitStatus = job.waitFor();
+							if (exitStatus != 0) {
+								throw new Exception("exec command returned failure status " + exitStatus);
+							}
+						}
+					};
+				}
+				trace.println();
+				throw new Exception("exec argument should be string or a word");
+			}
+		});
+
+		register("exec-include", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: exec-include [cache [{ inputs ... }]] [timeout <seconds>] <command> { args ... }
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				List<String> inputs = null;
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD && tokenizer.sval.equals("cache")) {
+					trace.print(" cache");
+					inputs = getArgs(tokenizer, s.script);
+					tokenizer.nextToken();
+				}
+				final List<String> depends = inputs;
+				final long timeout = parseTimeout(s);
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					String command = tokenizer.sval;
+					trace.print(' ');
+					trace.print(command);
+					final List<String> args = getArgs(tokenizer, s.script);
+					final File include = resolve(s.file, command);
+					return new Node() {
+						public void execute() throws Exception {
+							String command = include.getCanonicalPath();
+							trace.println(command);
+							List<String> arguments = new ArrayList<String>();
+							arguments.add(command);
+							arguments.addAll(args);
+							if (null != depends) {
+								// Memoized: reuse the compiled output of an identical earlier command
+								String key = outputKey(s.file, include, arguments, depends);
+								Script output = scripts.getOutput(key);
+								if (null == output) {
+									output = compileOutput(include, arguments, timeout);
+									scripts.putOutput(key, output);
+								} else {
+									trace.println("// exec-include: using cached output");
+								}
+								runScript(output, include, include.getName(), new ExecutionContext());
+								return;
+							}
+							ProcessRunner.Job job = ProcessRunner.start(arguments, timeout, false);
+							try {
+								// Execute the output as it is produced, rather than waiting for the command
+								// to finish.  Its exit status is checked once all the output has been run.
+								BufferedReader reader = new BufferedReader( new InputStreamReader( job.getOutput() ) );
+								runScript(new TokenStream(include.getName(), reader), include, include.getName(), new ExecutionContext());
+								int exitStatus = job.waitFor();
+								if (exitStatus != 0) {
+									throw new Exception("exec-include command returned failure status " + exitStatus);
+								}
+							} finally {
+								if (job.isAlive()) job.kill();
+							}
+						}
+					};
+				}
+				trace.println();
+				throw new Exception(s.cmd + " argument should be string or a word");
+			}
+		});
+
+		register("log", new Command() {
+			public Node parse(Statement s) throws Exception {
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					String action = tokenizer.sval;
+					trace.print(' ');
+					trace.print(action);
+					if (action.equals("dump")) {
+						// HELP: log dump
+						trace.println("");
+						return new Node() {
+							public void execute() throws Exception {
+								if (driver != null) dumpLog();
+							}
+						};
+					}
+					if (action.equals("auto")) {
+						// HELP: log auto <on|off>
+						// HELP: log auto <true|false>
+						tokenizer.nextToken();
+						final String onoff = tokenizer.sval;
+						trace.print(' ');
+						trace.println(onoff);
+						return new Node() {
+							public void execute() {
+								autolog = onoff.equals("on") || onoff.equals("true");
+							}
+						};
+					}
+					trace.println();
+					throw new Exception("invalid log action");
+				}
+				trace.println();
+				throw new Exception("log argument should be string or a word");
+			}
+		});
+
+		register("default", new Command() {
+			public Node parse(Statement s) throws Exception {
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					String action = tokenizer.sval;
+					trace.print(' ');
+					trace.print(action);
+					if (action.equals("wait")) {
+						// HELP: default wait <seconds>
+						tokenizer.nextToken();
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							final double nval = tokenizer.nval;
+							trace.print(' ');
+							trace.println(nval);
+							return new Node() {
+								public void execute() {
+									_defaultWaitFor = (int) (nval * 1000.0);
+								}
+							};
+						}
+						return NOOP;
+					}
+					if (action.equals("poll")) {
+						// HELP: default poll <seconds> [<max-seconds>]
+						tokenizer.nextToken();
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							final double initial = tokenizer.nval;
+							double max = initial;
+							tokenizer.nextToken();
+							if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+								max = tokenizer.nval;
+							} else {
+								tokenizer.pushBack();
+							}
+							final RetryPolicy policy = new RetryPolicy((long) (initial * 1000.0), (long) (max * 1000.0));
+							trace.print(' ');
+							trace.print(initial);
+							trace.print(' ');
+							trace.println(max);
+							return new Node() {
+								public void execute() {
+									poll = policy;
+								}
+							};
+						}
+						trace.println();
+						throw new Exception("default poll should be followed by seconds at line " + s.lineno);
+					}
+					if (action.equals("idle")) {
+						// HELP: default idle <seconds> [<timer-seconds>]
+						tokenizer.nextToken();
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							final double window = tokenizer.nval;
+							trace.print(' ');
+							trace.print(window);
+							double timers = -1;
+							tokenizer.nextToken();
+							if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+								timers = tokenizer.nval;
+								trace.print(' ');
+								trace.print(timers);
+							} else {
+								tokenizer.pushBack();
+							}
+							trace.println();
+							final double threshold = timers;
+							return new Node() {
+								public void execute() {
+									idleWindow = (long) (window * 1000.0);
+									if (threshold >= 0) idleTimers = (long) (threshold * 1000.0);
+								}
+							};
+						}
+						trace.println();
+						throw new Exception("default idle should be followed by seconds at line " + s.lineno);
+					}
+					if (action.equals("checksum")) {
+						// HELP: default checksum <crc32|fnv1a>
+						tokenizer.nextToken();
+						if (tokenizer.ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals(Digest.CRC32) || tokenizer.sval.equals(Digest.FNV1A))) {
+							final String algorithm = tokenizer.sval;
+							trace.print(' ');
+							trace.println(algorithm);
+							return new Node() {
+								public void execute() {
+									checksumAlgorithm = algorithm;
+								}
+							};
+						}
+						trace.println();
+						throw new Exception("default checksum should be crc32 or fnv1a at line " + s.lineno);
+					}
+					if (action.equals("index")) {
+						// HELP: default index <on|off>
+						tokenizer.nextToken();
+						if (tokenizer.ttype == StreamTokenizer.TT_WORD && (tokenizer.sval.equals("on") || tokenizer.sval.equals("off"))) {
+							final boolean on = tokenizer.sval.equals("on");
+							trace.print(' ');
+							trace.println(tokenizer.sval);
+							return new Node() {
+								public void execute() {
+									testIdIndex = on;
+								}
+							};
+						}
+						trace.println();
+						throw new Exception("default index should be on or off at line " + s.lineno);
+					}
+					if (action.equals("screenshot")) {
+						// HELP: default screenshot <path>
+						tokenizer.nextToken();
+						if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+							final String path = tokenizer.sval;
+							trace.print(' ');
+							trace.println(path);
+							return new Node() {
+								public void execute() {
+									screenShotPath = path;
+								}
+							};
+						}
+						return NOOP;
+					}
+					trace.println();
+					throw new Exception("invalid default property " + tokenizer.sval);
+				}
+				trace.println();
+				throw new Exception("default argument should be string or a word");
+			}
+		});
+
+		register("push", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: push wait
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final String action = tokenizer.sval;
+					trace.print(' ');
+					trace.print(action);
+					if (action.equals("wait")) {
+						trace.println();
+						return new Node() {
+							public void execute() {
+								ArrayList<Object> stack = stacks.get(action);
+								if (null == stack) {
+									stack = new ArrayList<Object>();
+									stacks.put(action, stack);
+								}
+								stack.add(new Long(_waitFor));
+							}
+						};
+					}
+				}
+				trace.println();
+				throw new Error("Invalid push argument");
+			}
+		});
+
+		register("pop", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: pop wait
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final String action = tokenizer.sval;
+					trace.print(' ');
+					trace.print(action);
+					if (action.equals("wait")) {
+						trace.println();
+						return new Node() {
+							public void execute() {
+								ArrayList<Object> stack = stacks.get(action);
+								if (null == stack || stack.isEmpty()) {
+									throw new Error("pop called without corresponding push");
+								}
+								int index = stack.size()-1;
+								_waitFor = (Long) stack.get(index);
+								stack.remove(index);
+							}
+						};
+					}
+				}
+				trace.println();
+				throw new Error("Invalid push argument");
+			}
+		});
+
+		register("echo", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: echo "string"
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final String text = s.getExpandedString();
+					trace.print(' ');
+					trace.println(text);
+					return new Node() {
+						public void execute() {
+							if (!_skip) Trace.out.println(text);
+						}
+					};
+				}
+				trace.println();
+				throw new Exception("echo argument should be string or a word");
+			}
+		});
+
+		register("sleep", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: sleep <seconds>
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+					final double nval = tokenizer.nval;
+					trace.print(' ');
+					trace.println(nval);
+					return new Node() {
+						public void execute() {
+							sleep((long)(nval * 1000));
+						}
+					};
+				}
+				trace.println();
+				throw new Exception("sleep command argument should be a number");
+			}
+		});
+
+		register("fail", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: fail "<message>"
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final String text = tokenizer.sval;
+					trace.print(' ');
+					trace.println(text);
+					return new Node() {
+						public void execute() throws Exception {
+							if (!_skip) {
+								Trace.out.println("TEST FAIL: " + text);
+								throw new Exception(text);
+							}
+						}
+					};
+				}
+				trace.println();
+				throw new Exception("echo argument should be string or a word");
+			}
+		});
+
+		register("debugger", new Command() {
+			public Node parse(Statement s) {
+				// HELP: debugger
+				trace.println();
+				return new Node() {
+					public void execute() {
+						sleepSeconds(10);
+					}
+				};
+			}
+		});
+
+		register("if", new Command() {
+			public Node parse(Statement s) {
+				// HELP: if <commands> then <commands> [else <commands>] endif
+				trace.println();
+				return new Node() {
+					public void execute() {
+						_if = true;
+					}
+				};
+			}
+		});
+
+		register("then", new Command() {
+			public Node parse(Statement s) {
+				trace.println();
+				return new Node() {
+					public void execute() {
+						_if = false;
+						_skip = !_test;
+					}
+				};
+			}
+		});
+
+		register("else", new Command() {
+			public Node parse(Statement s) {
+				trace.println();
+				return new Node() {
+					public void execute() {
+						_if = false;
+						_skip = _test;
+					}
+				};
+			}
+		});
+
+		register("endif", new Command() {
+			public Node parse(Statement s) {
+				trace.println();
+				return new Node() {
+					public void execute() {
+						_skip = false;
+					}
+				};
+			}
+		});
+
+		register("not", new Command() {
+			public Node parse(Statement s) {
+				// HELP: not <check-command>
+				trace.println();
+				return new Node() {
+					public void execute() {
+						_not = true;
+					}
+				};
+			}
+		});
+	}
+
+	// browser <action> ... commands, dispatched on the action
+	private void registerBrowserCommands() {
+		register("browser", new Command() {
+			public Node parse(Statement s) throws Exception {
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					trace.print(' ');
+					trace.print(tokenizer.sval);
+					Command action = browserCommands.get(tokenizer.sval);
+					if (null != action) {
+						return action.parse(s);
+					}
+					throw new Exception("browser unknown command argument at line " + tokenizer.lineno());
+				}
+				throw new Exception("browser missing command argument at line " + tokenizer.lineno());
+			}
+		});
+
+		browserCommands.put("prefs", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser prefs ...
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					trace.print(' ');
+					trace.print(tokenizer.sval);
+					final String pref = tokenizer.sval;
 					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {		// expect a quoted string
-						System.out.print(' ');
-						System.out.println(tokenizer.sval);
+					trace.print(' ');
+					final Object value;
+					switch(tokenizer.ttype) {
+					case StreamTokenizer.TT_WORD:
+					case '"':
+						trace.println(tokenizer.sval);
+						if (tokenizer.sval.equals("false")) {
+							value = false;
+						} else if (tokenizer.sval.equals("true")) {
+							value = true;
+						} else {
+							value = tokenizer.sval;
+						}
+						break;
+					case StreamTokenizer.TT_NUMBER:
+						trace.println(tokenizer.nval);
+						value = tokenizer.nval;
+						break;
+					default:
+						value = null;
+					}
+					if (null != value) {
+						return new Node() {
+							public void execute() {
+								if (_skip) return;
+								if (null == options) options = new ChromeOptions();
+								if (null == prefs) prefs = new HashMap<String, Object>();
+								prefs.put(pref, value);
+							}
+						};
+					}
+				}
+				trace.println();
+				throw new Exception("browser option command argument missing");
+			}
+		});
+
+		browserCommands.put("option", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser option ...
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {		// expect a quoted string
+					final String option = tokenizer.sval;
+					trace.print(' ');
+					trace.println(option);
+					return new Node() {
+						public void execute() {
+							if (_skip) return;
+							if (null == options) options = new ChromeOptions();
+							options.addArguments(option);
+						}
+					};
+				}
+				trace.println();
+				throw new Exception("browser option command argument missing");
+			}
+		});
+
+		browserCommands.put("wait", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser wait <seconds>
+				s.tokenizer.nextToken();
+				final double nval = s.getExpandedNumber();
+				trace.print(' ');
+				trace.println(nval);
+				return new Node() {
+					public void execute() {
 						if (_skip) return;
-		    			if (null == driver) driver = new ChromeDriver(options);
-						driver.get(tokenizer.sval);
-						return;
+						driver.manage().timeouts().implicitlyWait((long)(nval * 1000), TimeUnit.MILLISECONDS);
 					}
-					System.out.println();
-					throw new Exception("browser get command argument should be a quoted url");
-				}
-				
-				if (tokenizer.sval.equals("refresh")) {
-					// HELP: browser refresh
-					System.out.println();
-					driver.navigate().refresh();
-					return;
-				}
+				};
+			}
+		});
 
-				if (tokenizer.sval.equals("back")) {
-					// HELP: browser refresh
-					System.out.println();
-					driver.navigate().back();
-					return;
-				}
+		browserCommands.put("start", new Command() {
+			public Node parse(Statement s) {
+				// HELP: browser start
+				trace.println();
+				return new Node() {
+					public void execute() {
+						if (null == driver) {
+							// https://sites.google.com/a/chromium.org/chromedriver/capabilities
+							DesiredCapabilities capabilities = DesiredCapabilities.chrome();
+							LoggingPreferences logs = new LoggingPreferences();
+							logs.enable(LogType.BROWSER, Level.ALL);
+							capabilities.setCapability(CapabilityType.LOGGING_PREFS, logs);
+							if (null == options) options = new ChromeOptions();
+							if (null == prefs) prefs = new HashMap<String, Object>();
+							options.setExperimentalOption("prefs", prefs);
+							options.merge(capabilities);
+							driver = browsers.acquire(options);
+							driver.setLogLevel(Level.ALL);
+							actions = new Actions(driver);			// for advanced actions
+						}
+					}
+				};
+			}
+		});
 
-				if (tokenizer.sval.equals("forward")) {
-					// HELP: browser refresh
-					System.out.println();
-					driver.navigate().forward();
-					return;
+		browserCommands.put("get", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser get "url"
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {		// expect a quoted string
+					final String url = tokenizer.sval;
+					trace.print(' ');
+					trace.println(url);
+					return new Node() {
+						public void execute() {
+							if (_skip) return;
+							driver.get(url);
+						}
+					};
 				}
+				trace.println();
+				throw new Exception("browser get command argument should be a quoted url");
+			}
+		});
 
-				if (tokenizer.sval.equals("close")) {
-					// HELP: browser close
-					System.out.println();
-					if (!_skip) {
-						driver.close();
-						autolog = false;
+		browserCommands.put("refresh", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser refresh
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() {
+						driver.navigate().refresh();
 					}
-					return;
-				}
-				
-				if (tokenizer.sval.equals("chrome")) {
-					// HELP: browser chrome <width>,<height>
-					int w = 0, h = 0;
+				};
+			}
+		});
+
+		browserCommands.put("back", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser back
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() {
+						driver.navigate().back();
+					}
+				};
+			}
+		});
+
+		browserCommands.put("forward", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser forward
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() {
+						driver.navigate().forward();
+					}
+				};
+			}
+		});
+
+		browserCommands.put("close", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser close
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() {
+						if (!_skip) {
+							driver.close();
+							autolog = false;
+						}
+					}
+				};
+			}
+		});
+
+		browserCommands.put("chrome", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser chrome <width>,<height>
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+					final int w = (int) tokenizer.nval;
+					trace.print(' ');
+					trace.print(w);
 					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-						w = (int) tokenizer.nval;
-						System.out.print(' ');
-						System.out.print(w);
+					if (tokenizer.ttype == ',') {
 						tokenizer.nextToken();
-						if (tokenizer.ttype == ',') {
-							tokenizer.nextToken();
-							System.out.print(',');
-							if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-								h = (int) tokenizer.nval;
-								System.out.print(h);
-								System.out.println();
-								if (!_skip) {
-									this.chrome = new Dimension(w,h);
+						trace.print(',');
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							final int h = (int) tokenizer.nval;
+							trace.print(h);
+							trace.println();
+							return new Node() {
+								public void execute() {
+									if (!_skip) {
+										chrome = new Dimension(w,h);
+									}
 								}
-								return;
-							}
+							};
 						}
 					}
-					throw new Exception("browser chrome arguments error at line " + tokenizer.lineno());
 				}
-				
-				if (tokenizer.sval.equals("size")) {
-					// HELP: browser size <width>,<height>
+				throw new Exception("browser chrome arguments error at line " + tokenizer.lineno());
+			}
+		});
+
+		browserCommands.put("size", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: browser size <width>,<height>
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+					final int w = (int) tokenizer.nval;
+					trace.print(' ');
+					trace.print(w);
 					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-						final int w = (int) tokenizer.nval;
-						System.out.print(' ');
-						System.out.print(w);
+					if (tokenizer.ttype == ',') {
 						tokenizer.nextToken();
-						if (tokenizer.ttype == ',') {
-							tokenizer.nextToken();
-							System.out.print(',');
-							if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-								final int h = (int) tokenizer.nval;
-								System.out.print(h);
-								System.out.println();
-								if (!_skip) {
-									new WaitFor(cmd, tokenizer, false) {
+						trace.print(',');
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							final int h = (int) tokenizer.nval;
+							trace.print(h);
+							trace.println();
+							return new Node() {
+								public void execute() throws Exception {
+									if (_skip) return;
+									new WaitFor(s.cmd, s.lineno, false) {
 										@Override
 										protected void run() throws RetryException {
 											Dimension size = new Dimension(chrome.width + w, chrome.height + h);
-											System.out.println("// chrome " + chrome.toString());
-											System.out.println("// size with chrome " + size.toString());
+											if (Trace.enabled(Trace.COMMANDS)) trace.println("// chrome " + chrome.toString());
+											if (Trace.enabled(Trace.COMMANDS)) trace.println("// size with chrome " + size.toString());
 											try {
 												driver.manage().window().setSize(size);
 											} catch(Exception e) {
@@ -755,847 +2357,818 @@ public class RunTests {
 										}
 									};
 								}
-								return;
-							}
+							};
 						}
 					}
-					throw new Exception("browser size arguments error at line " + tokenizer.lineno());
 				}
-				if (tokenizer.sval.equals("pos")) {
-					// HELP: browser pos <x>,<y>
-					int x = 0, y = 0;
+				throw new Exception("browser size arguments error at line " + tokenizer.lineno());
+			}
+		});
+
+		browserCommands.put("pos", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: browser pos <x>,<y>
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+					final int x = (int) tokenizer.nval;
+					trace.print(' ');
+					trace.print(x);
 					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-						x = (int) tokenizer.nval;
-						System.out.print(' ');
-						System.out.print(x);
+					if (tokenizer.ttype == ',') {
 						tokenizer.nextToken();
-						if (tokenizer.ttype == ',') {
-							tokenizer.nextToken();
-							System.out.print(',');
-							if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-								y = (int) tokenizer.nval;
-								System.out.print(y);
-								System.out.println();
-								if (!_skip) driver.manage().window().setPosition(new Point(x,y));
-								return;
-							}
+						trace.print(',');
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							final int y = (int) tokenizer.nval;
+							trace.print(y);
+							trace.println();
+							return new Node() {
+								public void execute() {
+									if (!_skip) driver.manage().window().setPosition(new Point(x,y));
+								}
+							};
 						}
 					}
-					throw new Exception("browser size arguments error at line " + tokenizer.lineno());
 				}
-				throw new Exception("browser unknown command argument at line " + tokenizer.lineno());
-			}
-			throw new Exception("browser missing command argument at line " + tokenizer.lineno());
-		}
-		
-		if (cmd.equals("alias") || cmd.equals("function")) {
-			// HELP: alias <name> { body }
-			// HELP: function <name> (param, ...) { body }
-			String name = null, args = null;
-			List<String> params = null;
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				System.out.print(' ');
-				System.out.print(tokenizer.sval);
-				name = tokenizer.sval;
-				params = getParams(tokenizer);
-				args = getBlock(script, tokenizer, ' ', false);
-				System.out.println();
-				if (_skip) return;
-				addFunction(name, params, args);		// add alias
-				return;
+				throw new Exception("browser size arguments error at line " + tokenizer.lineno());
 			}
-			System.out.println();			
-			throw new Exception("alias name expected");
-		}
+		});
+	}
 
-		if (cmd.equals("while")) {
-			// HELP: while { block }
-			String block = null;
-			block = getBlock(script, tokenizer, ' ', false);
-			if (_skip) return;
-			boolean exitloop = false;
-			while (!exitloop) {
-				try {
-					runString(block, file, "while");
-				} catch(Exception e) {
-					exitloop = true;
+	// Commands that select an element, or act upon the selected element.  These all require
+	// the browser to have been started.
+	private void registerSelectionCommands() {
+		Command field = new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: field "<test-id>"
+				// HELP: id "<test-id>"
+				// HELP: test-id "<test-id>"
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final Token token = tokenizer.token();
+					trace.print(' ');
+					return new Node() {
+						public void execute() throws Exception {
+							if (_skip) return;
+							setContextToField(s.script, token);
+						}
+					};
 				}
+				trace.println();
+				throw new Exception(s.cmd + " command requires a form.field argument");
 			}
-			return;
-		}
+		};
+		register("field", field);
+		register("id", field);
+		register("test-id", field);
 
-		if (cmd.equals("include")) {
-			// HELP: include <script>
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				if (_skip) return;
-				System.out.print(' ');
-				System.out.println(tokenizer.sval);
-				File include = new File(
-						tokenizer.sval.startsWith("/") 
-						? tokenizer.sval 
-						: file.getParentFile().getCanonicalPath() + "/" + tokenizer.sval
-					);
-				runScript(include.getCanonicalPath());
-				return;
-			}
-			throw new Exception("include argument should be a quoted filename");
-		}
-		
-		if (cmd.equals("exec")) {
-			// HELP: exec <command> { args ... }
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String command = tokenizer.sval;
-				System.out.print(' ');
-				System.out.print(command);
-				List<String> args = getArgs(tokenizer, script);
-				File include = new File(command.startsWith("/") 
-										? command 
-										: file.getParentFile().getCanonicalPath() + "/" + command
-									);
-				command = include.getCanonicalPath();
-				System.out.println(command);
-				List<String> arguments = new ArrayList<String>();
-				arguments.add(command);
-				arguments.addAll(args);
-				Process process = Runtime.getRuntime().exec(arguments.toArray(new String[arguments.size()]));
-				BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
-				String line = "";
-				while ((line = reader.readLine()) != null) {
-					System.out.println(line);
-				}
-				int exitStatus = process.waitFor();
-				if (exitStatus != 0) {
-					throw new Exception("exec command returned failure status " + exitStatus);
+		register("select", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: select "<query-selector>"
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final Token token = tokenizer.token();
+					trace.print(' ');
+					return new Node() {
+						public void execute() throws Exception {
+							if (_skip) return;
+							selectContext(s.script, token);
+						}
+					};
 				}
-				return;
+				trace.println();
+				throw new Exception(s.cmd + " command requires a css selector argument");
 			}
-			System.out.println();
-			throw new Exception("exec argument should be string or a word");
-		}
+		});
 
-		if (cmd.equals("exec-include")) {
-			// HELP: exec-include <command> { args ... }
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String command = tokenizer.sval;
-				System.out.print(' ');
-				System.out.print(command);
-				List<String> args = getArgs(tokenizer, script);
-				File include = new File(command.startsWith("/") 
-										? command 
-										: file.getParentFile().getCanonicalPath() + "/" + command
-									);
-				command = include.getCanonicalPath();
-				System.out.println(command);
-				List<String> arguments = new ArrayList<String>();
-				arguments.add(command);
-				arguments.addAll(args);
-				Process process = Runtime.getRuntime().exec(arguments.toArray(new String[arguments.size()]));
-				BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
-				String s = "", line = "";
-				while ((line = reader.readLine()) != null) {
-					s += line + "\n";
-				}
-				int exitStatus = process.waitFor();
-				if (exitStatus != 0) {
-					throw new Exception("exec-include command returned failure status " + exitStatus);
-				}
-				if (s.length() > 0) {
-					runString(s,file,tokenizer.sval);
+		register("xpath", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: xpath "<xpath-expression>"
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final Token token = tokenizer.token();
+					trace.print(' ');
+					return new Node() {
+						public void execute() throws Exception {
+							if (_skip) return;
+							xpathContext(s.script, token);
+						}
+					};
 				}
-				return;
+				trace.println();
+				throw new Exception(s.cmd + " command requires a css selector argument");
 			}
-			System.out.println();
-			throw new Exception(cmd + " argument should be string or a word");
-		}
-		
-		if (cmd.equals("log")) {
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String action = tokenizer.sval;
-				System.out.print(' ');
-				System.out.print(action);
-				if (action.equals("dump")) {
-					// HELP: log dump
-					System.out.println("");
-					if (driver != null) dumpLog();
-					return;
-				}
-				if (action.equals("auto")) {
-					// HELP: log auto <on|off>
-					// HELP: log auto <true|false>
-					tokenizer.nextToken();
-					String onoff = tokenizer.sval;
-					System.out.print(' ');
-					System.out.println(onoff);
-					autolog = onoff.equals("on") || onoff.equals("true");
-					return;
+		});
+
+		register("wait", new Command() {
+			public Node parse(Statement s) throws Exception {
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+					// HELP: wait <seconds>
+					final double nval = tokenizer.nval;
+					trace.print(' ');
+					trace.println(nval);
+					return new Node() {
+						public void execute() {
+							// we will repeat then next select type command until it succeeds or we timeout
+							startWait((long) (nval * 1000));
+						}
+					};
 				}
-				System.out.println();
-				throw new Exception("invalid log action");
-			}
-			System.out.println();
-			throw new Exception("log argument should be string or a word");
-		}
-		
-		if (cmd.equals("default")) {
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String action = tokenizer.sval;
-				System.out.print(' ');
-				System.out.print(action);
-				if (action.equals("wait")) {
-					// HELP: default wait <seconds>
-					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-						System.out.print(' ');
-						System.out.println(tokenizer.nval);
-						_defaultWaitFor = (int) (tokenizer.nval * 1000.0);
+
+				// HELP: wait <action>
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD) {
+					String action = tokenizer.sval;
+					trace.print(' ');
+					trace.print(action);
+					if (action.equals("idle")) {
+						// HELP: wait idle [<seconds>]
+						tokenizer.nextToken();
+						double seconds = -1;
+						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
+							seconds = tokenizer.nval;
+							trace.print(' ');
+							trace.print(seconds);
+						} else {
+							tokenizer.pushBack();
+						}
+						trace.println();
+						final double timeout = seconds;
+						return new Node() {
+							public void execute() throws Exception {
+								if (_skip) return;
+								// no timeout given, use the wait timer or else the default wait
+								long ms = timeout >= 0 ? (long) (timeout * 1000.0) : waiting() ? remaining() : _defaultWaitFor;
+								if (!pageWait().idle(idleWindow, idleTimers, System.nanoTime() + ms * 1000000L)) {
+									throw new Exception("wait idle timed out after " + ms / 1000.0 + " seconds at line " + s.lineno);
+								}
+							}
+						};
 					}
-					return;
-				}
-				if (action.equals("screenshot")) {
-					// HELP: default screenshot <path>
-					tokenizer.nextToken();
-					if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-						System.out.print(' ');
-						System.out.println(tokenizer.sval);
-						screenShotPath = tokenizer.sval;
+					trace.println();
+					if (action.equals("clickable")) {
+						return new Node() {
+							public void execute() throws Exception {
+								long sleep = remaining() / 1000;
+								if (sleep > 0) {
+									if (Trace.enabled(Trace.COMMANDS)) trace.println("WebDriverWait for " + sleep + " seconds");
+									WebDriverWait wait = new WebDriverWait(driver, sleep);
+									WebElement element = wait.until(ExpectedConditions.elementToBeClickable(selection));
+									if (element != selection) {
+										throw new Exception("element is not clickable");
+									}
+								} else {
+									if (Trace.enabled(Trace.COMMANDS)) trace.println("WebDriverWait for " + sleep + " seconds (skipped)");
+								}
+							}
+						};
 					}
-					return;
 				}
-				System.out.println();
-				throw new Exception("invalid default property " + tokenizer.sval);
+				throw new Exception(s.cmd + " command requires a seconds argument");
 			}
-			System.out.println();
-			throw new Exception("default argument should be string or a word");
-		}
+		});
 
-		if (cmd.equals("push")) {
-			// HELP: push wait
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String action = tokenizer.sval;
-				System.out.print(' ');
-				System.out.print(action);
-				ArrayList<Object> stack = stacks.get(action);
-				if (null == stack) {
-					stack = new ArrayList<Object>();
-					stacks.put(action, stack);
-				}
-				if (action.equals("wait")) {
-					stack.add(new Long(_waitFor));
-					System.out.println();
-					return;
-				}
-			}
-			System.out.println();
-			throw new Error("Invalid push argument");
-		}
-				
-		if (cmd.equals("pop")) {
-			// HELP: pop wait
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String action = tokenizer.sval;
-				System.out.print(' ');
-				System.out.print(action);
-				ArrayList<Object> stack = stacks.get(action);
-				if (null == stack || stack.isEmpty()) {
-					throw new Error("pop called without corresponding push");
-				}
-				if (action.equals("wait")) {
-					int index = stack.size()-1;
-					_waitFor = (Long) stack.get(index);
-					stack.remove(index);
-					System.out.println();
-					return;
+		Command set = new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: set "<value>"
+				// HELP: send "<value>"
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
+				tokenizer.nextToken();
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					final Token token = tokenizer.token();
+					trace.print(' ');
+					trace.println(s.getExpandedString());
+					return new Node() {
+						public void execute() throws Exception {
+							if (_skip) return;
+							setContextValue(s.cmd, s.lineno, s.script, token, s.cmd.equals("set"));
+						}
+					};
 				}
+				trace.println();
+				throw new Exception("set command requires a value argument");
 			}
-			System.out.println();
-			throw new Error("Invalid push argument");
-		}
+		};
+		register("set", set);
+		register("send", set);
 
-		if (cmd.equals("echo")) {
-			// HELP: echo "string"
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String text = script.getExpandedString(tokenizer);
-				System.out.print(' ');
-				System.out.println(text);
-				if (!_skip) System.out.println(text);
-				return;
-			}
-			System.out.println();
-			throw new Exception("echo argument should be string or a word");
-		}
-		
-		if (cmd.equals("sleep")) {
-			// HELP: sleep <seconds>
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-				System.out.print(' ');
-				System.out.println(tokenizer.nval);
-				this.sleep((long)(tokenizer.nval * 1000));
-				return;
-			}
-			System.out.println();
-			throw new Exception("sleep command argument should be a number");
-		}
-		
-		if (cmd.equals("fail")) {
-			// HELP: fail "<message>"
-			tokenizer.nextToken();
-			if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-				String text = tokenizer.sval;
-				System.out.print(' ');
-				System.out.println(text);
-				if (!_skip) {
-					System.out.println("TEST FAIL: " + text);
-					throw new Exception(text);
-				}
-				return;
+		Command click = new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: click
+				// HELP: click-now
+				requireBrowser();
+				trace.println();
+				final boolean wait = !s.cmd.equals("click-now");
+				return new Node() {
+					public void execute() throws Exception {
+						new WaitFor(s.cmd, s.lineno, true) {
+							@Override
+							protected void run() throws RetryException {
+								if (!_skip) {
+									if (wait) {
+										long sleep = remaining() / 1000;
+										if (sleep > 0) {
+											if (Trace.enabled(Trace.COMMANDS)) trace.println("WebDriverWait for " + sleep + " seconds");
+											WebDriverWait wait = new WebDriverWait(driver, sleep);
+											WebElement element = wait.until(ExpectedConditions.elementToBeClickable(selection));
+											if (element == selection) {
+												selection.click();
+												return;
+											} else {
+												throw new RetryException("click failed");
+											}
+										}
+									}
+									// click-nowait, no or negative wait period, just click
+									selection.click();
+								}
+							}
+						};
+					}
+				};
 			}
-			System.out.println();
-			throw new Exception("echo argument should be string or a word");
-		}
-
-		if (cmd.equals("debugger")) {
-			// HELP: debugger
-			System.out.println();
-			this.sleepSeconds(10);
-			return;
-		}
-
-		
-		if (cmd.equals("if")) {
-			// HELP: if <commands> then <commands> [else <commands>] endif
-			_if = true;
-			System.out.println();
-			return;
-		}
-		
-		if (cmd.equals("then")) {
-			_if = false;
-			_skip = !_test;
-			System.out.println();
-			return;
-		}
+		};
+		register("click", click);
+		register("click-now", click);
 
-		if (cmd.equals("else")) {
-			_if = false;
-			_skip = _test;
-			System.out.println();
-			return;
-		}
+		register("scroll-into-view", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: scroll-into-view
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() throws Exception {
+						if (null == selection) throw new Exception(s.cmd + " command requires a field selection at line " + s.lineno);
+						if (!_skip) {
+							try {
+								scrollContextIntoView(selection);
+							} catch(Exception e) {
+								trace.println(e.getMessage());
+								info(selection, selectionCommand, false);
+								throw e;
+							}
+						}
+					}
+				};
+			}
+		});
 
-		if (cmd.equals("endif")) {
-			_skip = false;
-			System.out.println();
-			return;
-		}
-		
-		if (cmd.equals("not")) {
-			// HELP: not <check-command>
-			System.out.println();
-			_not = true;
-			return;
-		}
-		
-		if (null != driver) {
-			
-			// all these command require the browser to have been started
-	
-			if (cmd.equals("field") || cmd.equals("id") || cmd.equals("test-id")) {
-				// HELP: field "<test-id>"
-				// HELP: id "<test-id>"
-				// HELP: test-id "<test-id>"
-				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					if (_skip) return;
-					System.out.print(' ');
-					this.setContextToField(script, tokenizer);
-					return;
-				}
-				System.out.println();
-				throw new Exception(cmd + " command requires a form.field argument");
+		register("clear", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: clear
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() throws Exception {
+						new WaitFor(s.cmd, s.lineno, true) {
+							@Override
+							protected void run() {
+								if (!_skip) selection.clear();
+							}
+						};
+					}
+				};
 			}
-	
-			if (cmd.equals("select")) {
-				// HELP: select "<query-selector>"
+		});
+
+		register("call", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: call <function> { args ... }
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
 				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					if (_skip) return;
-					System.out.print(' ');
-					selectContext(tokenizer, script);
-					return;
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {		// expect a quoted string
+					final String function = s.getExpandedString();
+					trace.print(' ');
+					trace.print(function);
+					final String args = getBlock(s.script, tokenizer, ',', true);
+					trace.println();
+					return new Node() {
+						public void execute() {
+							if (_skip) return;
+							String js = "var result = window.RegressionTest.test('"+function+"',[" + (null == args ? "" : args) + "]);"
+											+ "arguments[arguments.length-1](result);";
+							if (Trace.enabled(Trace.COMMANDS)) trace.println("> " + js);
+							Object result = driver.executeAsyncScript(js);
+							if (null != result) {
+								if (result.getClass() == RemoteWebElement.class) {
+									selection = (RemoteWebElement) result;
+									stype = SelectionType.Script;
+									selector = js;
+									if (Trace.enabled(Trace.COMMANDS)) trace.println("new selection " + selection);
+								}
+							}
+						}
+					};
 				}
-				System.out.println();
-				throw new Exception(cmd + " command requires a css selector argument");
+				trace.println();
+				throw new Exception("missing arguments for call statement at line " + tokenizer.lineno());
 			}
-			
-			if (cmd.equals("xpath")) {
-				// HELP: xpath "<xpath-expression>"
-				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					if (_skip) return;
-					System.out.print(' ');
-					this.xpathContext(script, tokenizer);
-					return;
-				}
-				System.out.println();
-				throw new Exception(cmd + " command requires a css selector argument");
+		});
+
+		register("info", new Command() {
+			public Node parse(final Statement s) throws Exception {
+				// HELP: info
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() throws Exception {
+						if (null == selection) throw new Exception("info command requires a selection at line " + s.lineno);
+						info(selection, selectionCommand, true);
+					}
+				};
 			}
-			
-			if (cmd.equals("wait")) {
-				// HELP: wait <seconds>
+		});
+
+		register("alert", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: alert accept
+				requireBrowser();
+				trace.println();
+				final TokenStream tokenizer = s.tokenizer;
 				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-					System.out.print(' ');
-					System.out.println(tokenizer.nval);
-					
-					// we will repeat then next select type command until it succeeds or we timeout
-					_waitFor = (long) ((new Date()).getTime() + (tokenizer.nval * 1000));
-					return;
+				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
+					trace.print(' ');
+					trace.print(tokenizer.sval);
+					if (tokenizer.sval.equals("accept")) {
+						trace.println();
+						return new Node() {
+							public void execute() {
+								if (!_skip) driver.switchTo().alert().accept();
+							}
+						};
+					}
 				}
-				
-				// HELP: wait <action>
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD) {
-					String action = tokenizer.sval;
-					System.out.println(' ');
-					System.out.println(action);
-					if (action.equals("clickable")) {
-						long sleep = (_waitFor - (new Date()).getTime()) / 1000;
-						if (sleep > 0) {
-							System.out.println("WebDriverWait for " + sleep + " seconds");
-							WebDriverWait wait = new WebDriverWait(driver, sleep);
-							WebElement element = wait.until(ExpectedConditions.elementToBeClickable(selection));
-							if (element != selection) {
-								throw new Exception("element is not clickable");
+				trace.println();
+				throw new Exception("alert syntax error at line " + tokenizer.lineno());
+			}
+		});
+
+		register("dump", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: dump
+				requireBrowser();
+				trace.println();
+				return new Node() {
+					public void execute() throws Exception {
+						if (!_skip) dump();
+					}
+				};
+			}
+		});
+
+		register("mouse", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: mouse { <center|0,0|origin|body|down|up|click|+/-x,+/-y> commands ... }
+				requireBrowser();
+				final List<String> moves = new ArrayList<String>();
+				parseBlock(s.script, s.tokenizer, new BlockHandler() {
+					public void parseToken(Token t, String token) {
+						moves.add(token);
+					}
+				});
+				trace.println();
+				return new Node() {
+					public void execute() {
+						for (String token : moves) {
+							int l = token.length();
+							if (token.equals("center")) {
+								actions.moveToElement(selection);
+							} else if ((l > 1 && token.substring(1,l-1).equals("0,0")) || token.equals("origin")) {
+								actions.moveToElement(selection,0,0);
+							} else if (token.equals("body")) {
+								actions.moveToElement(driver.findElement(By.tagName("body")),0,0);
+							} else if (token.equals("down")) {
+								actions.clickAndHold();
+							} else if (token.equals("up")) {
+								actions.release();
+							} else if (token.equals("click")) {
+								actions.click();
+							} else if (l > 1) {
+								String [] a = token.substring(1,l-1).split(",");
+								actions.moveByOffset(Integer.valueOf(a[0]), Integer.valueOf(a[1]));
+							} else {
+								// no-op
 							}
-						} else {
-							System.out.println("WebDriverWait for " + sleep + " seconds (skipped)");
 						}
-						return;
+						actions.release();
+						actions.build().perform();
 					}
-				}
-				throw new Exception(cmd + " command requires a seconds argument");
+				};
 			}
+		});
 
-			if (cmd.equals("set") || cmd.equals("send")) {
-				// HELP: set "<value>"
-				// HELP: send "<value>"
+		register("screenshot", new Command() {
+			public Node parse(Statement s) throws Exception {
+				// HELP: screenshot "<path>"
+				requireBrowser();
+				final TokenStream tokenizer = s.tokenizer;
 				tokenizer.nextToken();
 				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					if (_skip) return;
-					System.out.print(' ');
-					System.out.println(script.getExpandedString(tokenizer));
-					this.setContextValue(cmd, script, tokenizer, cmd.equals("set"));
-					return;
+					final String path = tokenizer.sval;
+					trace.print(' ');
+					trace.println(path);
+					return new Node() {
+						public void execute() throws Exception {
+							if (_skip) return;
+					        WebDriver augmentedDriver = new Augmenter().augment(driver);
+					        File screenshot = ((TakesScreenshot)augmentedDriver).
+					                            getScreenshotAs(OutputType.FILE);
+					        String outputPath;
+					        if (screenShotPath == null || path.startsWith("/") || path.substring(1, 1).equals(":")) {
+					        	outputPath = path;
+					        } else {
+					        	outputPath = screenShotPath + (screenShotPath.endsWith("/") ? "" : "/") + path;
+					        }
+					        if (Trace.enabled(Trace.COMMANDS)) trace.println(screenshot.getAbsolutePath() + " -> " + path);
+						    FileUtils.moveFile(screenshot, new File(outputPath));
+						}
+					};
 				}
-				System.out.println();
-				throw new Exception("set command requires a value argument");
+				trace.println();
+				throw new Exception("screenshot argument should be a path");
 			}
-	
-			if (cmd.equals("test") || cmd.equals("check")) {
+		});
+	}
+
+	// Checks against the selected element.  A check waits (see wait <seconds>) for the
+	// selected element to satisfy it, and may be inverted with not.
+	private void registerCheckCommands() {
+		CheckCommand test = new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
 				// HELP: test "<value>"
 				// HELP: check "<value>"
-				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"' || tokenizer.ttype == '\'') {
-					if (_skip) return;
-					System.out.print(' ');
-					System.out.println(script.getExpandedString(tokenizer));
-					this.testContextValue(cmd, script, tokenizer, false);
-					return;
-				}
-				System.out.println();
-				throw new Exception(cmd + " command requires a value argument");
-			}
-			
-			if (cmd.equals("checksum")) {
 				// HELP: checksum "<checksum>"
+				final TokenStream tokenizer = s.tokenizer;
 				tokenizer.nextToken();
 				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"' || tokenizer.ttype == '\'') {
-					if (_skip) return;
-					System.out.print(' ');
-					System.out.println(script.getExpandedString(tokenizer));
-					this.testContextValue(cmd, script, tokenizer, true);
-					return;
+					final Token token = tokenizer.token();
+					final boolean checksum = s.cmd.equals("checksum");
+					trace.print(' ');
+					trace.println(s.getExpandedString());
+					return new Check(s) {
+						void execute() throws Exception {
+							if (_skip) return;
+							testContextValue(s.cmd, s.lineno, s.script, token, checksum);
+						}
+						String test(List<Object> record, boolean not) {
+							String expected = s.script.getExpandedString(token);
+							String value = checksum
+									? ElementInfo.digest(record, Digest.algorithm(expected))
+									: ElementInfo.content(record);
+							if (not != (null != value && value.equals(expected))) return null;
+							return s.cmd + " expected " + (not ? "not " : "") + "'" + expected + "' but was '" + value + "'";
+						}
+						boolean needsContent() {
+							return !checksum;
+						}
+					};
 				}
-				System.out.println();
-				throw new Exception(cmd + " command requires a value argument");
+				trace.println();
+				throw new Exception(s.cmd + " command requires a value argument");
 			}
-	
-			if (cmd.equals("click") || cmd.equals("click-now")) {
-				// HELP: click
-				System.out.println();
-				final boolean wait = !cmd.equals("click-now");
-				new WaitFor(cmd, tokenizer, true) {
-					@Override
-					protected void run() throws RetryException {
-						if (!_skip) {
-							if (wait) { 
-								long sleep = (_waitFor - (new Date()).getTime()) / 1000;
-								if (sleep > 0) {
-									System.out.println("WebDriverWait for " + sleep + " seconds");
-									WebDriverWait wait = new WebDriverWait(driver, sleep);
-									WebElement element = wait.until(ExpectedConditions.elementToBeClickable(selection));
-									if (element == selection) {
-										selection.click();
+		};
+		registerCheck("test", test);
+		registerCheck("check", test);
+		registerCheck("checksum", test);
+
+		registerCheck("enabled", new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
+				// HELP: enabled
+				trace.println();
+				return new Check(s) {
+					void execute() throws Exception {
+						new WaitFor(s.cmd, s.lineno, true) {
+							@Override
+							protected void run() throws RetryException {
+								if (!_skip) {
+									if (selection.isEnabled() != _not) {
+										_not = false;
 										return;
-									} else {
-										throw new RetryException("click failed");
 									}
+									throw new RetryException("enabled check failed");
 								}
 							}
-							// click-nowait, no or negative wait period, just click
-							selection.click();
-						}
-					}
-				};
-				return;
-			}
-			
-			if (cmd.equals("scroll-into-view")) {
-				// HELP: scroll-into-view
-				System.out.println();
-				if (null == selection) throw new Exception(cmd + " command requires a field selection at line " + tokenizer.lineno());
-				if (!_skip) {
-					try {
-						scrollContextIntoView(selection);
-					} catch(Exception e) {
-						System.out.println(e.getMessage());
-						info(selection, selectionCommand, false);
-						throw e;
-					}
-				}
-				return;			
-			}
-	
-			if (cmd.equals("clear")) {
-				// HELP: clear
-				System.out.println();
-				new WaitFor(cmd, tokenizer, true) {
-					@Override
-					protected void run() {
-						if (!_skip) selection.clear();
-					}
-				};
-				return;
-			}
-			
-			if (cmd.equals("call")) {
-				// HELP: call <function> { args ... }
-				String function = null, args = null;
-				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {		// expect a quoted string
-					function = script.getExpandedString(tokenizer);
-					System.out.print(' ');
-					System.out.print(function);
-					args = getBlock(script, tokenizer, ',', true);
-					System.out.println();
-					if (_skip) return;
-					if (null == args) args = "";
-					String js = "var result = window.RegressionTest.test('"+function+"',[" + args + "]);"
-									+ "arguments[arguments.length-1](result);";
-					System.out.println("> " + js);
-					Object result = driver.executeAsyncScript(js);
-					if (null != result) {
-						if (result.getClass() == RemoteWebElement.class) {
-							selection = (RemoteWebElement) result;
-							stype = SelectionType.Script;
-							selector = js;
-							System.out.println("new selection " + selection);
-						}
+						};
 					}
-					return;
-				}
-				System.out.println();
-				throw new Exception("missing arguments for call statement at line " + tokenizer.lineno());
-			}
-			
-			if (cmd.equals("enabled")) {
-				// HELP: enabled
-				System.out.println();
-				new WaitFor(cmd, tokenizer, true) {
-					@Override
-					protected void run() throws RetryException {
-						if (!_skip) {
-							if (selection.isEnabled() != _not) {
-								_not = false;
-								return;
-							}
-							throw new RetryException("enabled check failed");
-						}
+					String test(List<Object> record, boolean not) {
+						return ElementInfo.enabled(record) != not ? null : (not ? "enabled" : "not enabled");
 					}
 				};
-				return;
 			}
-	
-			if (cmd.equals("selected")) {
+		});
+
+		registerCheck("selected", new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
 				// HELP: selected
-				System.out.println();
-				new WaitFor(cmd, tokenizer, true) {
-					@Override
-					protected void run() throws RetryException {
-						if (!_skip) {
-							if (selection.isSelected() != _not) {
-								_not = false;
-								return;
+				trace.println();
+				return new Check(s) {
+					void execute() throws Exception {
+						new WaitFor(s.cmd, s.lineno, true) {
+							@Override
+							protected void run() throws RetryException {
+								if (!_skip) {
+									if (selection.isSelected() != _not) {
+										_not = false;
+										return;
+									}
+									throw new RetryException("selected check failed");
+								}
 							}
-							throw new RetryException("selected check failed");
-						}
+						};
+					}
+					String test(List<Object> record, boolean not) {
+						return ElementInfo.selected(record) != not ? null : (not ? "selected" : "not selected");
 					}
 				};
-				return;
 			}
-			
-			if (cmd.equals("displayed")) {
+		});
+
+		registerCheck("displayed", new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
 				// HELP: displayed
-				System.out.println();
-				new WaitFor(cmd, tokenizer, true) {
-					@Override
-					protected void run() throws RetryException {
-						if (!_skip) {
-							if (selection.isDisplayed() != _not) {
-								_not = false;
-								return;
+				trace.println();
+				return new Check(s) {
+					void execute() throws Exception {
+						new WaitFor(s.cmd, s.lineno, true) {
+							@Override
+							protected void run() throws RetryException {
+								if (!_skip) {
+									if (selection.isDisplayed() != _not) {
+										_not = false;
+										return;
+									}
+									throw new RetryException("displayed check failed");
+								}
 							}
-							throw new RetryException("displayed check failed");
-						}
+						};
+					}
+					String test(List<Object> record, boolean not) {
+						return ElementInfo.displayed(record) != not ? null : (not ? "displayed" : "not displayed");
 					}
 				};
-				return;
 			}
-			
-			if (cmd.equals("at")) {
+		});
+
+		registerCheck("at", new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
 				// HELP: at <x|*>,<y>
-				int x = 0, y = 0;
+				final TokenStream tokenizer = s.tokenizer;
+				int x = 0;
 				tokenizer.nextToken();
 				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER || tokenizer.ttype == '*') {
-					x = (int) tokenizer.nval;
-					System.out.print(' ');
+					trace.print(' ');
 					if (tokenizer.ttype == '*') {
 						x = -1;
-						System.out.print('*');
+						trace.print('*');
 					} else {
 						x = (int) tokenizer.nval;
-						System.out.print(x);
+						trace.print(x);
 					}
 					tokenizer.nextToken();
 					if (tokenizer.ttype == ',') {
 						tokenizer.nextToken();
-						System.out.print(',');
+						trace.print(',');
 						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-							y = (int) tokenizer.nval;
-							System.out.print(y);
-							System.out.println();
 							final int X = x;
-							final int Y = y;
-							new WaitFor(cmd, tokenizer, true) {
-								@Override
-								protected void run() throws RetryException {
-									if (!_skip) {
-										Point loc = selection.getLocation();
-										if (((loc.x == X || X == -1) && loc.y == Y) != _not) {
-											_not = false;
-											return;
+							final int Y = (int) tokenizer.nval;
+							trace.print(Y);
+							trace.println();
+							return new Check(s) {
+								void execute() throws Exception {
+									new WaitFor(s.cmd, s.lineno, true) {
+										@Override
+										protected void run() throws RetryException {
+											if (!_skip) {
+												Point loc = selection.getLocation();
+												if (((loc.x == X || X == -1) && loc.y == Y) != _not) {
+													_not = false;
+													return;
+												}
+												throw new RetryException("location check failed");
+											}
 										}
-										throw new RetryException("location check failed");
-									}
+									};
+								}
+								String test(List<Object> record, boolean not) {
+									int x = ElementInfo.x(record), y = ElementInfo.y(record);
+									if (((x == X || X == -1) && y == Y) != not) return null;
+									return (not ? "not " : "") + "at " + (X == -1 ? "*" : "" + X) + "," + Y + " but at " + x + "," + y;
 								}
 							};
-							return;
 						}
 					}
 				}
-				System.out.println();
+				trace.println();
 				throw new Exception("at missing co-ordiantes at line " + tokenizer.lineno());
 			}
-	
-			if (cmd.equals("size")) {
+		});
+
+		registerCheck("size", new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
 				// HELP: size <w|*>,<h>
-				int mw = 0, w = 0, h = 0;
+				final TokenStream tokenizer = s.tokenizer;
+				int mw = 0, w = 0;
 				tokenizer.nextToken();
 				if (tokenizer.ttype == StreamTokenizer.TT_NUMBER || tokenizer.ttype == '*') {
-					System.out.print(' ');
+					trace.print(' ');
 					if (tokenizer.ttype == '*') {
 						mw = w = -1;
-						System.out.print('*');
+						trace.print('*');
 					} else {
 						mw = w = (int) tokenizer.nval;
-						System.out.print(w);
+						trace.print(w);
 					}
 					tokenizer.nextToken();
 					if (tokenizer.ttype == ':') {
 						tokenizer.nextToken();
 						w = (int) tokenizer.nval;
-						System.out.print(':');
-						System.out.print(w);
+						trace.print(':');
+						trace.print(w);
 						tokenizer.nextToken();
 					}
 					if (tokenizer.ttype == ',') {
 						tokenizer.nextToken();
-						System.out.print(',');
+						trace.print(',');
 						if (tokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-							h = (int) tokenizer.nval;
-							System.out.print(h);
-							System.out.println();
 							final int MW = mw;
 							final int W = w;
-							final int H = h;
-							new WaitFor(cmd, tokenizer, true) {
-								@Override
-								protected void run() throws RetryException {
-									if (!_skip) {
-										Dimension size = selection.getSize();
-										if (((MW == -1 || (size.width >= MW && size.width <= W)) && size.height == H) != _not) {
-											_not = false;
-											return;
+							final int H = (int) tokenizer.nval;
+							trace.print(H);
+							trace.println();
+							return new Check(s) {
+								void execute() throws Exception {
+									new WaitFor(s.cmd, s.lineno, true) {
+										@Override
+										protected void run() throws RetryException {
+											if (!_skip) {
+												Dimension size = selection.getSize();
+												if (((MW == -1 || (size.width >= MW && size.width <= W)) && size.height == H) != _not) {
+													_not = false;
+													return;
+												}
+												throw new RetryException("size check failed");
+											}
 										}
-										throw new RetryException("size check failed");
-									}
+									};
+								}
+								String test(List<Object> record, boolean not) {
+									int width = ElementInfo.width(record), height = ElementInfo.height(record);
+									if (((MW == -1 || (width >= MW && width <= W)) && height == H) != not) return null;
+									String expected = MW == -1 ? "*" : MW == W ? "" + W : MW + ":" + W;
+									return (not ? "not " : "") + "size " + expected + "," + H + " but size " + width + "," + height;
 								}
 							};
-							return;
 						}
 					}
 				}
-				System.out.println();
+				trace.println();
 				throw new Exception("size missing dimensions at line " + tokenizer.lineno());
 			}
-	
-			if (cmd.equals("tag")) {
+		});
+
+		registerCheck("tag", new CheckCommand() {
+			public Check parse(final Statement s) throws Exception {
 				// HELP: tag <tag-name>
+				final TokenStream tokenizer = s.tokenizer;
 				tokenizer.nextToken();
 				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					System.out.print(' ');
-					System.out.print(tokenizer.sval);
-					System.out.println();
-					new WaitFor(cmd, tokenizer, true) {
-						@Override
-						protected void run() throws RetryException {
-							if (!_skip) {
-								String tag = selection.getTagName();
-								if (tokenizer.sval.equals(tag) != _not) {
-									_not = false;
-									return;
+					final String name = tokenizer.sval;
+					trace.print(' ');
+					trace.print(name);
+					trace.println();
+					return new Check(s) {
+						void execute() throws Exception {
+							new WaitFor(s.cmd, s.lineno, true) {
+								@Override
+								protected void run() throws RetryException {
+									if (!_skip) {
+										String tag = selection.getTagName();
+										if (name.equals(tag) != _not) {
+											_not = false;
+											return;
+										}
+										throw new RetryException("tag check failed");
+									}
 								}
-								throw new RetryException("tag \"" + tokenizer.sval + "\" check failed, tag is " + tag + " at line " + tokenizer.lineno());
-							}
+							};
+						}
+						String test(List<Object> record, boolean not) {
+							String tag = ElementInfo.tag(record);
+							return name.equals(tag) != not ? null : (not ? "not " : "") + "tag " + name + " but tag " + tag;
 						}
 					};
-					return;
 				}
-				System.out.println();
+				trace.println();
 				throw new Exception("tag command has missing tag name at line " + tokenizer.lineno());
 			}
-	
-			if (cmd.equals("info")) {
-				// HELP: info
-				System.out.println();
-				if (null == selection) throw new Exception("info command requires a selection at line " + tokenizer.lineno());
-				info(selection, selectionCommand, true);
-				return;
-			}
-			
-			if (cmd.equals("alert")) {
-				// HELP: alert accept
-				System.out.println();
-				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					System.out.print(' ');
-					System.out.print(tokenizer.sval);
-					if (tokenizer.sval.equals("accept")) {
-						System.out.println();
-						if (!_skip) driver.switchTo().alert().accept();
-						return;
-					}
+		});
+	}
+
+	// Check commands are parsed into a Check.  A run of consecutive checks (each optionally
+	// preceded by not) is gathered into a group that tests all of them against the properties
+	// of the selection read in one request, retrying until they all pass.  A check on its own
+	// runs as it always has.
+	private void registerCheck(String verb, final CheckCommand command) {
+		checks.put(verb, command);
+		register(verb, new Command() {
+			public Node parse(final Statement s) throws Exception {
+				requireBrowser();
+				final List<Check> group = new ArrayList<Check>();
+				group.add(command.parse(s));
+				final List<Boolean> nots = new ArrayList<Boolean>();
+				nots.add(false);
+				parseCheckGroup(s, group, nots);
+				if (group.size() == 1) {
+					return new Node() {
+						public void execute() throws Exception {
+							group.get(0).execute();
+						}
+					};
 				}
-				System.out.println();
-				throw new Exception("alert syntax error at line " + tokenizer.lineno());
-			}
-			
-			if (cmd.equals("dump")) {
-				// HELP: dump
-				System.out.println();
-				if (!_skip) dump();
-				return;
+				return new Node() {
+					public void execute() throws Exception {
+						if (_skip) return;
+						nots.set(0, _not);			// not command before the first check
+						_not = false;
+						checkGroup(s, group, nots);
+					}
+				};
 			}
-			
-			if (cmd.equals("mouse")) {
-				// HELP: mouse { <center|0,0|origin|body|down|up|click|+/-x,+/-y> commands ... }
-				parseBlock(script, tokenizer, new BlockHandler() {
-					public void parseToken(StreamTokenizer tokenizer, String token) {
-						int l = token.length();
-						if (token.equals("center")) {
-							actions.moveToElement(selection);
-						} else if ((l > 1 && token.substring(1,l-1).equals("0,0")) || token.equals("origin")) {
-							actions.moveToElement(selection,0,0);
-						} else if (token.equals("body")) {
-							actions.moveToElement(driver.findElement(By.tagName("body")),0,0);
-						} else if (token.equals("down")) {
-							actions.clickAndHold();
-						} else if (token.equals("up")) {
-							actions.release();
-						} else if (token.equals("click")) {
-							actions.click();
-						} else if (l > 1) {
-							String [] a = token.substring(1,l-1).split(",");
-							actions.moveByOffset(Integer.valueOf(a[0]), Integer.valueOf(a[1]));
-						} else {
-							// no-op
-						}
-					}						
-				});
-				System.out.println();
-				actions.release();
-				actions.build().perform();
+		});
+	}
+
+	// Add the check commands that directly follow a check to its group
+	private void parseCheckGroup(Statement s, List<Check> group, List<Boolean> nots) throws Exception {
+		TokenStream tokenizer = s.tokenizer;
+		for (;;) {
+			if (tokenizer.nextToken() != StreamTokenizer.TT_WORD) {
+				tokenizer.pushBack();
 				return;
 			}
-
-			if (cmd.equals("screenshot")) {
-				// HELP: screenshot "<path>"
-				tokenizer.nextToken();
-				if (tokenizer.ttype == StreamTokenizer.TT_WORD || tokenizer.ttype == '"') {
-					String path = tokenizer.sval;
-					System.out.print(' ');
-					System.out.println(path);
-					if (!_skip) {
-				        WebDriver augmentedDriver = new Augmenter().augment(driver);
-				        File screenshot = ((TakesScreenshot)augmentedDriver).
-				                            getScreenshotAs(OutputType.FILE);
-				        String outputPath;
-				        if (screenShotPath == null || path.startsWith("/") || path.substring(1, 1).equals(":")) {
-				        	outputPath = path;
-				        } else {
-				        	outputPath = screenShotPath + (screenShotPath.endsWith("/") ? "" : "/") + path;
-				        }
-				        System.out.println(screenshot.getAbsolutePath() + " -> " + path);
-					    FileUtils.moveFile(screenshot, new File(outputPath));
-					}
+			boolean not = tokenizer.sval.equals("not");
+			if (not) {
+				int lineno = tokenizer.lineno();
+				if (tokenizer.nextToken() != StreamTokenizer.TT_WORD || !checks.containsKey(tokenizer.sval)) {
+					tokenizer.pushBack();
+					tokenizer.pushBack();
 					return;
 				}
-				System.out.println();
-				throw new Exception("screenshot argument should be a path");
+				traceCommand(s.source, lineno, "not");
+				trace.println();
 			}
-		}		
-
-		if (functions.containsKey(cmd)) {
-			executeFunction(cmd, file, tokenizer, script);
-			return;
+			CheckCommand command = checks.get(tokenizer.sval);
+			if (null == command) {
+				tokenizer.pushBack();
+				return;
+			}
+			traceCommand(s.source, tokenizer.lineno(), tokenizer.sval);
+			group.add(command.parse(new Statement(tokenizer.sval, tokenizer, s.file, s.source, s.script)));
+			nots.add(not);
 		}
+	}
 
-		if (null == driver) {
-			throw new Exception("browser start must be used before attempt to interract with the browser");
+	// Test a group of checks against the selection, the properties are read by one request
+	// each attempt and every failing check is reported
+	private void checkGroup(final Statement s, final List<Check> group, final List<Boolean> nots) throws Exception {
+		final StringBuilder failures = new StringBuilder();
+		boolean content = false;
+		for (Check check : group) {
+			content |= check.needsContent();
 		}
-		
-		System.out.println();
-		throw new Exception("unrecognised command, " + cmd);
+		final boolean full = content;
+		new WaitFor(s.cmd, s.lineno, true) {
+			@Override
+			protected void run() throws Exception {
+				List<Object> record = ElementInfo.collect(driver, selection, full).get(0);
+				failures.setLength(0);
+				for (int i = 0; i < group.size(); i++) {
+					String failure = group.get(i).test(record, nots.get(i));
+					if (null != failure) {
+						if (failures.length() > 0) failures.append(", ");
+						failures.append(failure).append(" (line ").append(group.get(i).s.lineno).append(')');
+					}
+				}
+				if (failures.length() > 0) {
+					Trace.out.println("// CHECK FAIL: " + failures);
+					throw new RetryException("checks failed");
+				}
+			}
+			@Override
+			protected void fail(Exception e) throws Exception {
+				throw new Exception("checks failed at line " + s.lineno + ": " + (failures.length() > 0 ? failures : e.getMessage()));
+			}
+		};
 	}
 
 	private void dumpLog() throws Exception {
@@ -1606,11 +3179,11 @@ public class RunTests {
 		boolean fail = false;
 		for (int i = 0; i < list.size(); i++) {
 			LogEntry e = list.get(i);
-			System.out.println(e);
+			Trace.out.println(e);
 			if (e.getLevel().getName().equals("SEVERE") 
 					&& e.getMessage().indexOf("Uncaught ") != -1
 					&& e.getMessage().indexOf(" Error:") != -1) {
-				System.out.println("*** Uncaught Error ***");
+				Trace.out.println("*** Uncaught Error ***");
 				fail = true;
 			}		    			
 		}
@@ -1620,118 +3193,109 @@ public class RunTests {
 	private void info(WebElement element, String selector, boolean verify) throws Exception {
 		do {
 			try {
-				Point loc = element.getLocation();
-				Dimension size = element.getSize();
-				String tag = element.getTagName();
-				System.out.print(null == selector ? "test-id \"" + element.getAttribute("test-id") + "\"" : selector);
-				System.out.print(" info");
-				System.out.print(" tag " + tag);
-				System.out.print((element.isDisplayed() ? "" : " not") + " displayed");
-				System.out.print(" at " + loc.x + "," + loc.y);
-				System.out.print(" size " + size.width + "," + size.height);
-				System.out.print((element.isEnabled() ? "" : " not") + " enabled");
-				System.out.print((element.isSelected() ? "" : " not") + " selected");
-				if (tag.equals("input") || tag.equals("select")) {
-					System.out.print(" check \"" + element.getAttribute("value") + "\"");
-				} else {
-					String text = tag.equals("textarea") ? element.getAttribute("value") : element.getText();
-					if (text.indexOf('\n') != -1) {
-						CRC32 crc = new CRC32();
-						crc.update(text.getBytes());
-						System.out.print(" checksum \"crc32:" + crc.getValue() + "\"");
-					} else {
-						System.out.print(" check \"" + element.getText() + "\"");
-					}
-				}
-				System.out.println();
+				List<List<Object>> records = ElementInfo.collect(driver, element, false);
+				Trace.out.println(ElementInfo.format(records.get(0), selector, checksumAlgorithm));
 				return;
 			} catch(StaleElementReferenceException e) {
 				// If element has gone stale during a dump, ignore it
 				if (!verify) return;
 				// element has gone stale, re-select it
-				System.out.println("// EXCEPTION : StaleElementReference");
+				if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// EXCEPTION : StaleElementReference");
 			} catch(Exception e) {
 				if (verify) throw e;
 				return;
 			}
-			sleepAndReselect(100);
-		}  while (_waitFor > 0 && (new Date()).getTime() < _waitFor);
+			sleepAndReselect(poll.delay(1));
+		}  while (waiting());
 	}
 
-	// Find all test-id fields, and dump their info
 	private void dump() throws Exception {
-		List<WebElement> elements = driver.findElements(By.xpath("//*[@test-id]"));
-		for (int i = 0; i < elements.size(); i++) {
-			info(elements.get(i),null,false);	
+		// Every test-id element is read by one script, only the text of some elements needs
+		// a further request
+		for (List<Object> record : ElementInfo.collect(driver, null, false)) {
+			try {
+				Trace.out.println(ElementInfo.format(record, null, checksumAlgorithm));
+			} catch(Exception e) {
+				// element has gone stale during the dump, ignore it
+			}
 		}
 	}
 	
-	private void addFunction(String name, List<String> params, String args) {
-		ExecutionContext script = new ExecutionContext(params, args);
+	private void addFunction(String name, List<String> params, Script body) {
+		ExecutionContext script = new ExecutionContext(params, body);
 		functions.put(name, script);		
 	}
 	
 	private boolean compareStrings(String s1, String s2, boolean checksum) {
 		if (checksum) {
-			CRC32 crc = new CRC32();
-			crc.update(s1.getBytes());
-			return ("crc32:"+crc.getValue()).equals(s2);
+			return Digest.digest(s1, Digest.algorithm(s2)).equals(s2);
 		}
 		return s1.equals(s2);
 	}
 
-	private void testContextValue(String cmd, final ExecutionContext script, final StreamTokenizer tokenizer, final boolean checksum) throws Exception {
-		new WaitFor(cmd, tokenizer, true) {
+	private void testContextValue(String cmd, final int lineno, final ExecutionContext script, final Token token, final boolean checksum) throws Exception {
+		new WaitFor(cmd, lineno, true) {
 			@Override
-			protected void run() throws RetryException {
+			protected void run() throws Exception {
+				String test = script.getExpandedString(token);
+				if (checksum) {
+					// Checksum the text in the page, rather than fetching all of it
+					if (Trace.enabled(Trace.COMMANDS)) trace.println("// Checking element checksum is " + (_not ? "NOT " : "") + "equal to '" + test + "'");
+					String value = ElementInfo.digest(ElementInfo.collect(driver, selection, false).get(0), Digest.algorithm(test));
+					if (_not != test.equals(value)) {
+						_not = false;
+						return;
+					}
+					Trace.out.println("// CHECK FAIL: EXPECTED '" + test + "' WHICH DOES " + (_not ? "" : "NOT ") + " MATCH '" + value + "'");
+					throw new RetryException("checksum check failed");
+				}
 				String tagName = selection.getTagName();
-				String test = script.getExpandedString(tokenizer);
 				if (tagName.equals("input") || tagName.equals("select") || tagName.equals("textarea")) {
-					System.out.println("// Checking element value is " + (_not ? "NOT " : "") + " equal to '" + test + "'");
+					if (Trace.enabled(Trace.COMMANDS)) trace.println("// Checking element value is " + (_not ? "NOT " : "") + " equal to '" + test + "'");
 					String value = selection.getAttribute("value");
 					if (_not != (null != value && compareStrings(value, test, checksum))) {
 						_not = false;
 						return;
 					}
 					if (null == value) {
-						System.out.println("// CHECK FAIL: EXPECTED '" + test + "' BUT VALUE IS NULL");				
+						Trace.out.println("// CHECK FAIL: EXPECTED '" + test + "' BUT VALUE IS NULL");				
 					} else {
-						System.out.println("// CHECK FAIL: EXPECTED '" + test + "' WHICH DOES " + (_not ? "" : "NOT ") + " MATCH '" + value + "'");
+						Trace.out.println("// CHECK FAIL: EXPECTED '" + test + "' WHICH DOES " + (_not ? "" : "NOT ") + " MATCH '" + value + "'");
 					}
 					throw new RetryException("value check failed");
 				} else {
-					System.out.println("// Checking element textContent is " + (_not ? "NOT " : "") + "equal to '" + test + "'");
+					if (Trace.enabled(Trace.COMMANDS)) trace.println("// Checking element textContent is " + (_not ? "NOT " : "") + "equal to '" + test + "'");
 						String value = selection.getText();
-						System.out.println("text: " + value);
+						if (Trace.enabled(Trace.COMMANDS)) trace.println("text: " + value);
 						if (_not != (null != value && compareStrings(value, test, checksum))) {
 							_not = false;
 							return;
 						}
 						if (null == value) {
-							System.out.println("// CHECK FAIL: EXPECTED '" + test + "' BUT VALUE IS NULL");				
+							Trace.out.println("// CHECK FAIL: EXPECTED '" + test + "' BUT VALUE IS NULL");				
 						} else {
-							System.out.println("// CHECK FAIL: EXPECTED '" + test + "' WHICH DOES " + (_not ? "" : "NOT ") + " MATCH '" + value + "'");
+							Trace.out.println("// CHECK FAIL: EXPECTED '" + test + "' WHICH DOES " + (_not ? "" : "NOT ") + " MATCH '" + value + "'");
 						}
 						throw new RetryException("textContent check failed");
 				}
 			}
 			@Override
 			protected void fail(Exception e) throws Exception {
-				throw new Exception(e.getMessage() + ": " + tokenizer.sval + " test failed for current select selection at line " + tokenizer.lineno());
+				throw new Exception(e.getMessage() + ": " + token.sval + " test failed for current select selection at line " + token.lineno);
 			}
 		};
 	}
 
-	private void setContextValue(String cmd, final ExecutionContext script, final StreamTokenizer tokenizer, final boolean set) throws Exception {
-		new WaitFor(cmd, tokenizer, true) {
+	private void setContextValue(String cmd, final int lineno, final ExecutionContext script, final Token token, final boolean set) throws Exception {
+		new WaitFor(cmd, lineno, true) {
 			@Override
 			protected void run() throws Exception {
 				final String tagName = selection.getTagName();
 				if (tagName.equals("input") || tagName.equals("select") || tagName.equals("textarea")) {
 					if (set && !tagName.equals("select")) selection.clear();
-					selection.sendKeys(script.getExpandedString(tokenizer));
+					selection.sendKeys(script.getExpandedString(token));
 				} else {
-					throw new Exception("set cannot be used on a non-field selection at line " + tokenizer.lineno());
+					throw new Exception("set cannot be used on a non-field selection at line " + token.lineno);
 				}
 			}
 			@Override
@@ -1757,21 +3321,26 @@ public class RunTests {
 		}
 	}
 	
-	private boolean sleepAndReselect(int ms) throws Exception {
+	private boolean sleepAndReselect(long ms) throws Exception {
 		if (autolog) dumpLog();
-		long waitTimer = (_waitFor - (new Date()).getTime());
-		System.out.println("// SLEEP AND RESELECT [wait=" + waitTimer + "] ID " + selection.getId());
+		long waitTimer = remaining();
+		if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// SLEEP AND RESELECT " + ms + " [wait=" + waitTimer + "] ID " + selection.getId());
 //		if (waitTimer < -(ms*2)) {
 //			System.out.println("AUTO WAIT FOR 1s");
 //			_waitFor = (new Date()).getTime() + 1000;
 //		}
-		this.sleep(ms);
+		String kind = stype == SelectionType.Field ? SelectionCache.TEST_ID
+				: stype == SelectionType.XPath ? SelectionCache.XPATH
+				: stype == SelectionType.Select ? SelectionCache.CSS : null;
+		String key = stype == SelectionType.Field ? fieldId : selector;
+		// the wait also tells us if the selection is still in the page
+		Object valid = pageWait().change(Math.min(ms, waitTimer), selection);
 		try {
-			if (stype == SelectionType.XPath || stype == SelectionType.Field) {
-				selection = (RemoteWebElement) driver.findElement(By.xpath(selector));
-			}
-			else if (stype == SelectionType.Select) {
-				selection = (RemoteWebElement) driver.findElement(By.cssSelector(selector));
+			if (null != kind) {
+				if (!Boolean.TRUE.equals(valid)) {
+					selections.detached(kind, key);
+					selection = find(kind, key);
+				}
 			}
 			else if (stype == SelectionType.Script) {
 				Object result = driver.executeAsyncScript(selector);
@@ -1783,29 +3352,31 @@ public class RunTests {
 			}
 		} catch(NoSuchElementException e2) {
 			// element has gone stale, re-select it
-			System.out.println("// SLEEPANDRESELECT: EXCEPTION : NoSuchElement");
+			if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// SLEEPANDRESELECT: EXCEPTION : NoSuchElement");
 		} catch (Exception e) {
-			System.out.println("// SLEEPANDRESELECT: EXCEPTION : " + e.getMessage());
+			if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// SLEEPANDRESELECT: EXCEPTION : " + e.getMessage());
 			throw e;
 		}
-		System.out.println("// SLEEPANDRESELECT: RESELECTED " + selector + " SLEEP 100ms");
-		this.sleep(100);  // small delay
+		if (Trace.enabled(Trace.DEBUG)) Trace.out.println("// SLEEPANDRESELECT: RESELECTED " + selector);
 		return true;
 	}
 
-	private void xpathContext(ExecutionContext script, StreamTokenizer tokenizer) throws Exception {
+	private void xpathContext(ExecutionContext script, Token token) throws Exception {
 		Exception e;
 		stype = SelectionType.None;
 		selector = null;
-		String sval = script.getExpandedString(tokenizer);
-		System.out.println(sval);
+		String sval = script.getExpandedString(token);
+		trace.println(sval);
+		int retry = 0;
+		long started = System.nanoTime(), waited = 0;
 		do {
 			try {
-				selection = (RemoteWebElement) driver.findElement(By.xpath(sval));
+				selection = findCached(SelectionCache.XPATH, sval);
 				if (_not) { 
 					_test = _not = false; 
-					throw new Exception("not xpath " + sval + " is invalid on line " + tokenizer.lineno()); 
+					throw new Exception("not xpath " + sval + " is invalid on line " + token.lineno); 
 				}
+				retried("xpath", retry, waited);
 				selectionCommand = "xpath \"" + sval + "\"";
 				stype = SelectionType.XPath;
 				selector = sval;
@@ -1813,30 +3384,38 @@ public class RunTests {
 				return;
 			} catch(Exception ex) {
 				e = ex;
-				sleep(100);
-			}
-		} while (_waitFor > 0 && (new Date()).getTime() < _waitFor);
-		_waitFor = 0;
+				if (_probe || !waiting()) break;		// a probe makes a single attempt
+				retry++;
+				awaitElement("xpath", sval);
+				waited = System.nanoTime() - started;
+			}
+		} while (waiting());
+		retried("xpath", retry, waited);
+		if (!_probe) _waitFor = 0;
 		_test = false;
 		if (!_if)  {
 			if (_not) { _test = true; selection = null; _not = false; return; }
-			throw new Exception("xpath " + sval + " is invalid on line " + tokenizer.lineno() + " " + e.getMessage());
+			if (_probe) { probeFailed(); return; }
+			throw new Exception("xpath " + sval + " is invalid on line " + token.lineno + " " + e.getMessage());
 		}
 	}
 
-	private void selectContext(StreamTokenizer tokenizer, ExecutionContext script) throws Exception {
+	private void selectContext(ExecutionContext script, Token token) throws Exception {
 		Exception e;
 		stype = SelectionType.None;
 		selector = null;
-		String sval = script.getExpandedString(tokenizer);
-		System.out.println(sval);
+		String sval = script.getExpandedString(token);
+		trace.println(sval);
+		int retry = 0;
+		long started = System.nanoTime(), waited = 0;
 		do {
 			try {
-				selection = (RemoteWebElement) driver.findElement(By.cssSelector(sval));
+				selection = findCached(SelectionCache.CSS, sval);
 				if (_not) {
 					_test = _not = false; 
-					throw new Exception("not selector " + sval + " is invalid on line " + tokenizer.lineno()); 
+					throw new Exception("not selector " + sval + " is invalid on line " + token.lineno); 
 				}
+				retried("select", retry, waited);
 				selectionCommand = "select \"" + sval + "\"";
 				stype = SelectionType.Select;
 				selector = sval;
@@ -1844,49 +3423,139 @@ public class RunTests {
 				return;
 			} catch(Exception ex) {
 				e = ex;
-				sleep(100);
-			}
-		} while (_waitFor > 0 && (new Date()).getTime() < _waitFor);
-		_waitFor = 0;
+				if (_probe || !waiting()) break;		// a probe makes a single attempt
+				retry++;
+				awaitElement("css", sval);
+				waited = System.nanoTime() - started;
+			}
+		} while (waiting());
+		retried("select", retry, waited);
+		if (!_probe) _waitFor = 0;
 		_test = false;
 		if (!_if) {
 			if (_not) { _test = true; selection = null; selector = null; _not = false; return; }
-			throw new Exception("selector " + sval + " is invalid on line " + tokenizer.lineno() + " " + e.getMessage());
+			if (_probe) { probeFailed(); return; }
+			throw new Exception("selector " + sval + " is invalid on line " + token.lineno + " " + e.getMessage());
 		}
 	}
 
-	private void setContextToField(ExecutionContext script, StreamTokenizer tokenizer) throws Exception {
+	private void setContextToField(ExecutionContext script, Token token) throws Exception {
 		Exception e;
-		String sval = script.getExpandedString(tokenizer);
-		System.out.println(sval);
+		String sval = script.getExpandedString(token);
+		trace.println(sval);
 		String query = "//*[@test-id='"+sval+"']";
 		stype = SelectionType.None;
 		selector = null;
+		int retry = 0;
+		long started = System.nanoTime(), waited = 0;
 		do {
 			try {
-				selection = (RemoteWebElement) driver.findElement(By.xpath(query));
+				selection = findCached(SelectionCache.TEST_ID, sval);
 				if (_not) { 
 					_test = _not = false; 
-					throw new Exception("not test-id " + sval + " is invalid on line " + tokenizer.lineno()); 
+					throw new Exception("not test-id " + sval + " is invalid on line " + token.lineno); 
 				}
+				retried("field", retry, waited);
 				selectionCommand = "field \"" + sval + "\"";
 				stype = SelectionType.Field;
 				selector = query;
+				fieldId = sval;
 				_test = true;
 				return;
 			} catch(Exception ex) {
 				e = ex;
-				sleep(100);
-			}
-		} while (this._waitFor > 0 && (new Date()).getTime() < this._waitFor);
-		_waitFor = 0;
+				if (_probe || !waiting()) break;		// a probe makes a single attempt
+				retry++;
+				awaitElement("xpath", query);
+				waited = System.nanoTime() - started;
+			}
+		} while (waiting());
+		retried("field", retry, waited);
+		if (!_probe) _waitFor = 0;
 		_test = false;
 		if (!_if) {
 			if (_not) { _test = true; selection = null; _not = false; return; }
-			throw new Exception("field reference " + sval + " is invalid on line " + tokenizer.lineno() + " " + e.getMessage());
+			if (_probe) { probeFailed(); return; }
+			throw new Exception("field reference " + sval + " is invalid on line " + token.lineno + " " + e.getMessage());
 		}
 	}
 	
+	// A failed selection waits for a matching element to appear, until the wait timer expires
+	private void awaitElement(String kind, String selector) {
+		if (waiting()) {
+			pageWait().element(kind, selector, _waitFor);
+		}
+	}
+
+	// Start the wait timer, the time ms from now
+	private void startWait(long ms) {
+		_waitFor = System.nanoTime() + ms * 1000000L;
+		if (0 == _waitFor) _waitFor = 1;			// 0 is not set
+	}
+
+	// true until the wait timer expires
+	private boolean waiting() {
+		return 0 != _waitFor && _waitFor - System.nanoTime() > 0;
+	}
+
+	// ms left on the wait timer
+	private long remaining() {
+		return waiting() ? (_waitFor - System.nanoTime()) / 1000000L : 0;
+	}
+
+	// Record the retries a command needed and the time spent before its last attempt
+	private void retried(String cmd, int retry, long wasted) {
+		if (retry > 0) {
+			long[] stats = retries.get(cmd);
+			if (null == stats) {
+				stats = new long[3];
+				retries.put(cmd, stats);
+			}
+			stats[0]++;
+			stats[1] += retry;
+			stats[2] += wasted;
+		}
+	}
+
+	private PageWait pageWait() {
+		if (null == pageWait || pageWait.getDriver() != driver) {
+			pageWait = new PageWait(driver);
+		}
+		return pageWait;
+	}
+
+	// Find the element for a selector and cache it
+	private RemoteWebElement find(String kind, String selector) {
+		RemoteWebElement element;
+		if (kind.equals(SelectionCache.TEST_ID)) {
+			element = findField(selector, "//*[@test-id='" + selector + "']");
+		} else if (kind.equals(SelectionCache.CSS)) {
+			element = (RemoteWebElement) driver.findElement(By.cssSelector(selector));
+		} else {
+			element = (RemoteWebElement) driver.findElement(By.xpath(selector));
+		}
+		selections.put(kind, selector, element);
+		return element;
+	}
+
+	// Find the element for a selector, using the cached element until it is found detached
+	// (see SelectionCache).  A selection that is itself the test (if, not, an until condition)
+	// has no command to find out, so it is always found.
+	private RemoteWebElement findCached(String kind, String selector) {
+		if (_if || _not || _probe) return find(kind, selector);
+		RemoteWebElement element = selections.get(kind, selector);
+		return null != element ? element : find(kind, selector);
+	}
+
+	// Find an element by test-id, through the page's test-id index if it is enabled
+	private RemoteWebElement findField(String id, String query) {
+		if (testIdIndex) {
+			RemoteWebElement element = TestIdIndex.find(driver, id);
+			if (null != element) return element;
+		}
+		return (RemoteWebElement) driver.findElement(By.xpath(query));
+	}
+
 	private void scrollContextIntoView(WebElement element) throws Exception {
         Capabilities cp = ((RemoteWebDriver) driver).getCapabilities();
         if (cp.getBrowserName().equals("chrome")) {
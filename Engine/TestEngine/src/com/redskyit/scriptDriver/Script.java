@@ -0,0 +1,102 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// A compiled script.  The source of a script file, an alias/function/while body or the
+// output of exec-include is lexed exactly once into an immutable tree of tokens.  Each
+// block ({ ... }) is compiled into a child script hung off its opening '{' token, so
+// the body of an alias, function or loop can be executed any number of times without
+// being lexed again.
+final class Script {
+	final String name;
+	final Token[] tokens;
+
+	Script(String name, Token[] tokens) {
+		this.name = name;
+		this.tokens = tokens;
+	}
+
+	static void initTokenizer(StreamTokenizer tokenizer) {
+		tokenizer.quoteChar('"');
+		tokenizer.slashStarComments(true);
+		tokenizer.slashSlashComments(true);
+		tokenizer.whitespaceChars(' ', ' ');
+		tokenizer.whitespaceChars(0x09,0x09);
+		tokenizer.wordChars('$','$');		// treat $ as part of word
+		tokenizer.wordChars('#','#');		// treat # as part of word
+		tokenizer.wordChars('_','_');		// treat $# as part of word
+	}
+
+	static Script compile(File file) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
+		try {
+			return compile(file.getName(), in);
+		} finally {
+			in.close();
+		}
+	}
+
+	static Script compile(String name, String code) throws Exception {
+		return compile(name, new StringReader(code));
+	}
+
+	static Script compile(String name, Reader in) throws Exception {
+		StreamTokenizer tokenizer = new StreamTokenizer(in);
+		initTokenizer(tokenizer);
+		return parse(name, tokenizer, 0);
+	}
+
+	// Lex tokens up to the end of the source (or the closing brace of a block).  Nested
+	// blocks are compiled recursively and attached to their '{' token.
+	static Script parse(String name, StreamTokenizer tokenizer, int openedAt) throws IOException {
+		List<Token> tokens = new ArrayList<Token>();
+		while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
+			if (tokenizer.ttype == '{') {
+				int line = tokenizer.lineno();
+				tokens.add(new Token('{', null, 0, line, parse(name, tokenizer, line)));
+				continue;
+			}
+			if (tokenizer.ttype == '}' && openedAt > 0) {
+				return new Script(name, tokens.toArray(new Token[tokens.size()]));
+			}
+			tokens.add(new Token(tokenizer));
+		}
+		if (openedAt > 0) {
+			throw new IOException(name + ": missing } for block opened at line " + openedAt);
+		}
+		return new Script(name, tokens.toArray(new Token[tokens.size()]));
+	}
+
+	// A copy of this script with references to the given function parameters bound to
+	// their argument slots, see Token.bind
+	Script bind(List<String> params) {
+		Token[] bound = new Token[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			bound[i] = tokens[i].bind(params);
+		}
+		return new Script(name, bound);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < tokens.length; i++) {
+			if (i > 0) sb.append(' ');
+			sb.append(tokens[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,100 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compiled scripts, keyed by canonical path.  A script is compiled the first time it is
+// run or included, later includes of the same file reuse the compiled script for as long
+// as the file's modification time and size are unchanged.  If a ScriptStore is set, scripts
+// not yet compiled by this process are loaded from (or saved to) the store.
+//
+// Also holds the compiled output of exec-include cache commands, keyed by the command,
+// its arguments and the hashes of its declared inputs.
+final class ScriptCache {
+
+	private static final class Entry {
+		final long modified;
+		final long length;
+		final Script script;
+		Entry(long modified, long length, Script script) {
+			this.modified = modified;
+			this.length = length;
+			this.script = script;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> scripts = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private volatile ScriptStore store = null;
+	private final ConcurrentHashMap<String, Script> outputs = new ConcurrentHashMap<String, Script>();
+	private final AtomicLong outputHits = new AtomicLong();
+	private final AtomicLong outputMisses = new AtomicLong();
+
+	void setStore(ScriptStore store) {
+		this.store = store;
+	}
+
+	ScriptStore getStore() {
+		return store;
+	}
+
+	Script get(File file) throws Exception {
+		String path = file.getCanonicalPath();
+		long modified = file.lastModified();
+		long length = file.length();
+		Entry entry = scripts.get(path);
+		if (null != entry && entry.modified == modified && entry.length == length) {
+			hits.incrementAndGet();
+			return entry.script;
+		}
+		misses.incrementAndGet();
+		ScriptStore store = this.store;
+		Script script = null == store ? Script.compile(file) : store.get(file);
+		scripts.put(path, new Entry(modified, length, script));
+		return script;
+	}
+
+	// The compiled script for a look that isn't a run or include of it (see Dependencies).
+	// Not counted, and a script not yet in the cache is compiled without adding it, so the
+	// hits and misses describe only the scripts run.
+	Script peek(File file) throws Exception {
+		Entry entry = scripts.get(file.getCanonicalPath());
+		if (null != entry && entry.modified == file.lastModified() && entry.length == file.length()) {
+			return entry.script;
+		}
+		return Script.compile(file);
+	}
+
+	// The compiled output of a previous exec-include with the same key, or null
+	Script getOutput(String key) {
+		Script script = outputs.get(key);
+		(null == script ? outputMisses : outputHits).incrementAndGet();
+		return script;
+	}
+
+	void putOutput(String key, Script script) {
+		outputs.put(key, script);
+	}
+
+	long outputHits() {
+		return outputHits.get();
+	}
+
+	long outputMisses() {
+		return outputMisses.get();
+	}
+
+	long hits() {
+		return hits.get();
+	}
+
+	long misses() {
+		return misses.get();
+	}
+}
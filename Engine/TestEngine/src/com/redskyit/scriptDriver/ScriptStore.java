@@ -0,0 +1,191 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.StreamTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// A directory of compiled scripts, so that a fresh JVM can load a script without lexing it.
+// Each compiled file records the SHA-1 of the source it was compiled from and is only used
+// while the source is unchanged, otherwise the source is compiled and the file rewritten.
+//
+// Compiled file format (big endian):
+//   int magic, int version, byte[20] sha1 of source
+//   int string count, { int length, byte[length] utf8 } ...
+//   script: int token count, { int ttype, int lineno, value } ...
+// where value is a string index for words and quoted strings, a double for numbers,
+// a nested script for '{' and nothing for any other token.
+final class ScriptStore {
+	private static final int MAGIC = 0x53444331;		// SDC1
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+
+	ScriptStore(File dir) {
+		this.dir = dir;
+	}
+
+	// Load the compiled form of a script, compiling (and storing) it if the source has changed
+	Script get(File file) throws Exception {
+		byte[] source = Files.readAllBytes(file.toPath());
+		byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(source);
+		File compiled = compiledFile(file);
+		if (compiled.isFile()) {
+			try {
+				Script script = load(compiled, file.getName(), sha1);
+				if (null != script) {
+					loaded.incrementAndGet();
+					return script;
+				}
+			} catch (Exception e) {
+				Trace.out.println("// script cache: ignoring " + compiled + ": " + e.getMessage());
+			}
+		}
+		Script script = Script.compile(file.getName(), new InputStreamReader(new ByteArrayInputStream(source), UTF8));
+		try {
+			save(compiled, script, sha1);
+			written.incrementAndGet();
+		} catch (Exception e) {
+			Trace.out.println("// script cache: could not write " + compiled + ": " + e.getMessage());
+		}
+		return script;
+	}
+
+	long loaded() {
+		return loaded.get();
+	}
+
+	long written() {
+		return written.get();
+	}
+
+	// Compiled files are named after the source, qualified by a hash of its canonical path
+	private File compiledFile(File file) throws Exception {
+		String path = file.getCanonicalPath();
+		CRC32 crc = new CRC32();
+		crc.update(path.getBytes(UTF8));
+		return new File(dir, file.getName() + "-" + Long.toHexString(crc.getValue()) + ".sdc");
+	}
+
+	// Read in one go rather than mapped: a mapping is only released when it is garbage
+	// collected, and until then holds the file open and (on Windows) stops it being replaced
+	private Script load(File compiled, String name, byte[] sha1) throws Exception {
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(compiled.toPath()));
+		if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+		byte[] hash = new byte[sha1.length];
+		in.get(hash);
+		if (!MessageDigest.isEqual(hash, sha1)) return null;
+		String[] strings = new String[in.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			strings[i] = new String(bytes, UTF8);
+		}
+		return read(in, name, strings);
+	}
+
+	private Script read(ByteBuffer in, String name, String[] strings) {
+		Token[] tokens = new Token[in.getInt()];
+		for (int i = 0; i < tokens.length; i++) {
+			int ttype = in.getInt();
+			int lineno = in.getInt();
+			switch(ttype) {
+			case StreamTokenizer.TT_WORD:
+			case '"':
+			case '\'':
+				tokens[i] = new Token(ttype, strings[in.getInt()], 0, lineno, null);
+				break;
+			case StreamTokenizer.TT_NUMBER:
+				tokens[i] = new Token(ttype, null, in.getDouble(), lineno, null);
+				break;
+			case '{':
+				tokens[i] = new Token(ttype, null, 0, lineno, read(in, name, strings));
+				break;
+			default:
+				tokens[i] = new Token(ttype, null, 0, lineno, null);
+			}
+		}
+		return new Script(name, tokens);
+	}
+
+	private void save(File compiled, Script script, byte[] sha1) throws Exception {
+		List<String> strings = new ArrayList<String>();
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		collect(script, strings, index);
+		dir.mkdirs();
+		// Write to a temporary file and move it into place, so concurrent runs sharing the
+		// directory never see a partially written file
+		File tmp = File.createTempFile(compiled.getName(), ".tmp", dir);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.write(sha1);
+				out.writeInt(strings.size());
+				for (String s : strings) {
+					byte[] bytes = s.getBytes(UTF8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				write(out, script, index);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), compiled.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();			// gone already unless the write or move failed
+		}
+	}
+
+	private void collect(Script script, List<String> strings, HashMap<String, Integer> index) {
+		for (Token token : script.tokens) {
+			if (null != token.sval && !index.containsKey(token.sval)) {
+				index.put(token.sval, strings.size());
+				strings.add(token.sval);
+			}
+			if (null != token.block) collect(token.block, strings, index);
+		}
+	}
+
+	private void write(DataOutputStream out, Script script, HashMap<String, Integer> index) throws Exception {
+		out.writeInt(script.tokens.length);
+		for (Token token : script.tokens) {
+			out.writeInt(token.ttype);
+			out.writeInt(token.lineno);
+			switch(token.ttype) {
+			case StreamTokenizer.TT_WORD:
+			case '"':
+			case '\'':
+				out.writeInt(index.get(token.sval));
+				break;
+			case StreamTokenizer.TT_NUMBER:
+				out.writeDouble(token.nval);
+				break;
+			case '{':
+				write(out, token.block, index);
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openqa.selenium.remote.RemoteWebElement;
+
+// The elements found by xpath, select and field, keyed by the kind of selector and the
+// expanded selector.  A cached element is used again, without asking the page, until it
+// turns out to be detached: the command using it fails with StaleElementReferenceException
+// and the reselect of its retry finds the element is no longer connected (see VALID, which
+// the page change wait checks as it returns).  Only then is the selector queried again.
+//
+// A selection served from the cache counts as a hit, and becomes a miss if its element
+// turns out to be detached.  A selection that had to be found is a miss.
+final class SelectionCache {
+	static final String XPATH = "xpath";
+	static final String CSS = "css";
+	static final String TEST_ID = "test-id";
+	private static final int SIZE = 256;
+
+	// valid(element): still in the document
+	static final String VALID =
+		"function valid(el) { return !!el && el.isConnected; }\n";
+
+	private static final class Cached {
+		final RemoteWebElement element;
+		boolean served = false;			// returned by get since it was found
+		Cached(RemoteWebElement element) {
+			this.element = element;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<String, Cached> elements = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > SIZE;
+		}
+	};
+	private long hits = 0;
+	private long misses = 0;
+
+	// The cached element for a selector, or null if it has to be found
+	RemoteWebElement get(String kind, String selector) {
+		Cached entry = elements.get(kind + ":" + selector);
+		if (null == entry) {
+			misses++;
+			return null;
+		}
+		entry.served = true;
+		hits++;
+		return entry.element;
+	}
+
+	// The element for a selector has been found detached from the document, it has to be
+	// found again
+	void detached(String kind, String selector) {
+		Cached entry = elements.remove(kind + ":" + selector);
+		if (null != entry && entry.served) {
+			hits--;
+			misses++;
+		}
+	}
+
+	void put(String kind, String selector, RemoteWebElement element) {
+		elements.put(kind + ":" + selector, new Cached(element));
+	}
+
+	long hits() {
+		return hits;
+	}
+
+	long misses() {
+		return misses;
+	}
+}
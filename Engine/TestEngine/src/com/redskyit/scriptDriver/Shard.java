@@ -0,0 +1,69 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Splits a suite across shards (processes or machines) so each takes about as long.  With
+// a timing history (a results file of earlier runs) scripts are assigned longest first,
+// each to the shard with the least time so far.  A script with no history is taken to
+// last the average of those that have one.  Without any history the scripts are dealt out
+// in turn.  Every shard computes the same split from the same arguments and history, and
+// runs its scripts in command line order.
+final class Shard {
+
+	private Shard() {
+	}
+
+	// The scripts for shard index (1 to count)
+	static List<String> select(List<String> scripts, int index, int count, Results timings) {
+		int[] shard = new int[scripts.size()];
+		if (null == timings || timings.isEmpty()) {
+			for (int i = 0; i < shard.length; i++) {
+				shard[i] = i % count;
+			}
+		} else {
+			final long[] millis = new long[scripts.size()];
+			long known = 0, total = 0;
+			for (int i = 0; i < millis.length; i++) {
+				Results.Result result = timings.get(scripts.get(i));
+				millis[i] = null == result ? -1 : result.millis;
+				if (null != result) {
+					known++;
+					total += result.millis;
+				}
+			}
+			long average = known > 0 ? total / known : 0;
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < millis.length; i++) {
+				if (millis[i] < 0) millis[i] = average;
+				order.add(i);
+			}
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if (millis[a] != millis[b]) return millis[a] > millis[b] ? -1 : 1;
+					return a - b;
+				}
+			});
+			long[] load = new long[count];
+			for (int i : order) {
+				int least = 0;
+				for (int s = 1; s < count; s++) {
+					if (load[s] < load[least]) least = s;
+				}
+				shard[i] = least;
+				load[least] += millis[i];
+			}
+		}
+		List<String> selected = new ArrayList<String>();
+		for (int i = 0; i < shard.length; i++) {
+			if (shard[i] == index - 1) selected.add(scripts.get(i));
+		}
+		return selected;
+	}
+}
@@ -0,0 +1,81 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A quoted string from the body of a function, with its $(name) and $I(name) parameter
+// references resolved to argument slots when the function is defined.  The string is held
+// as literal segments separated by slots, so expanding it for a call is a single pass
+// into one StringBuilder.
+final class Template {
+	private final String[] literals;		// literals[i] precedes slots[i], the last follows the last slot
+	private final int[] slots;
+	private final boolean[] integer;		// $I(name) reference
+	private final String[] refs;			// reference text, used when $I() is given a non-number
+
+	private Template(String[] literals, int[] slots, boolean[] integer, String[] refs) {
+		this.literals = literals;
+		this.slots = slots;
+		this.integer = integer;
+		this.refs = refs;
+	}
+
+	// Compile a template for a string, or return null if it does not reference any of the params
+	static Template compile(String str, List<String> params) {
+		List<String> literals = null;
+		List<Integer> slots = null;
+		List<String> refs = null;
+		int start = 0, i = str.indexOf('$');
+		while (i != -1) {
+			boolean isInt = str.startsWith("$I(", i);
+			int open = isInt ? i + 3 : (str.startsWith("$(", i) ? i + 2 : -1);
+			int close = open == -1 ? -1 : str.indexOf(')', open);
+			int slot = close == -1 ? -1 : params.indexOf(str.substring(open, close));
+			if (slot == -1) {
+				i = str.indexOf('$', i + 1);
+				continue;
+			}
+			if (null == literals) {
+				literals = new ArrayList<String>();
+				slots = new ArrayList<Integer>();
+				refs = new ArrayList<String>();
+			}
+			literals.add(str.substring(start, i));
+			slots.add(slot);
+			refs.add(str.substring(i, close + 1));
+			start = close + 1;
+			i = str.indexOf('$', start);
+		}
+		if (null == literals) return null;
+		literals.add(str.substring(start));
+		int n = slots.size();
+		int[] slotArray = new int[n];
+		boolean[] intArray = new boolean[n];
+		for (int j = 0; j < n; j++) {
+			slotArray[j] = slots.get(j);
+			intArray[j] = refs.get(j).startsWith("$I(");
+		}
+		return new Template(literals.toArray(new String[n + 1]), slotArray, intArray, refs.toArray(new String[n]));
+	}
+
+	String expand(Object[] args) {
+		StringBuilder sb = new StringBuilder(literals[0].length() + 16 * slots.length);
+		for (int i = 0; i < slots.length; i++) {
+			sb.append(literals[i]);
+			Object v = args[slots[i]];
+			if (!integer[i]) {
+				sb.append(v);
+			} else if (v instanceof Double) {
+				sb.append(((Double) v).intValue());
+			} else {
+				sb.append(refs[i]);		// $I() of a non-number is left as is
+			}
+		}
+		sb.append(literals[slots.length]);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.RemoteWebElement;
+
+// A map from test-id to element kept in the page, so field commands find their element
+// without an XPath scan of the whole document.  The map is built the first time it is used
+// in a page and then kept up to date by a MutationObserver.  As with the XPath query, the
+// first element in document order is found when a test-id is used more than once.
+//
+// A navigation loses the map, the next lookup builds it again.  If the page can't support
+// it, lookups return null and the caller uses the XPath query instead.
+final class TestIdIndex {
+	private static final String SCRIPT =
+		"var ix = window.__scriptDriverTestIds;\n"
+		+ "if (!ix) {\n"
+		+ "  if (typeof MutationObserver == 'undefined' || typeof Map == 'undefined' || !document.documentElement) return false;\n"
+		+ "  var map = new Map();\n"
+		+ "  var add = function(el) {\n"
+		+ "    var id = el.getAttribute('test-id');\n"
+		+ "    var current = map.get(id);\n"
+		+ "    if (!current || !current.isConnected || current.getAttribute('test-id') !== id\n"
+		+ "        || (el.compareDocumentPosition(current) & Node.DOCUMENT_POSITION_FOLLOWING)) map.set(id, el);\n"
+		+ "  };\n"
+		+ "  var scan = function(node) {\n"
+		+ "    if (node.nodeType != 1) return;\n"
+		+ "    if (node.hasAttribute('test-id')) add(node);\n"
+		+ "    var found = node.querySelectorAll('[test-id]');\n"
+		+ "    for (var i = 0; i < found.length; i++) add(found[i]);\n"
+		+ "  };\n"
+		+ "  var update = function(mutations) {\n"
+		+ "    for (var i = 0; i < mutations.length; i++) {\n"
+		+ "      var m = mutations[i];\n"
+		+ "      if (m.type == 'attributes') { if (m.target.hasAttribute('test-id')) add(m.target); }\n"
+		+ "      else for (var j = 0; j < m.addedNodes.length; j++) scan(m.addedNodes[j]);\n"
+		+ "    }\n"
+		+ "  };\n"
+		+ "  var observer = new MutationObserver(update);\n"
+		+ "  observer.observe(document, { childList: true, subtree: true, attributes: true, attributeFilter: [ 'test-id' ] });\n"
+		+ "  scan(document.documentElement);\n"
+		+ "  ix = window.__scriptDriverTestIds = { map: map, flush: function() { update(observer.takeRecords()); } };\n"
+		+ "}\n"
+		+ "ix.flush();\n"
+		+ "var id = arguments[0];\n"
+		+ "var el = ix.map.get(id);\n"
+		+ "if (!el) return null;\n"			// every test-id element is in the map
+		+ "if (el.isConnected && el.getAttribute('test-id') === id) return el;\n"
+		+ "ix.map.delete(id);\n"			// removed or changed, there may be another with the same test-id
+		+ "el = document.querySelector('[test-id=\"' + CSS.escape(id) + '\"]');\n"
+		+ "if (el) ix.map.set(id, el);\n"
+		+ "return el;\n";
+
+	private TestIdIndex() {
+	}
+
+	// The element with a test-id, or null if the index can't be used in this page
+	static RemoteWebElement find(JavascriptExecutor driver, String id) {
+		Object result;
+		try {
+			result = driver.executeScript(SCRIPT, id);
+		} catch (WebDriverException e) {
+			return null;
+		}
+		if (result instanceof RemoteWebElement) {
+			return (RemoteWebElement) result;
+		}
+		if (null == result) {
+			throw new NoSuchElementException("no element with test-id " + id);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,89 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.StreamTokenizer;
+import java.util.List;
+
+// A single lexical token of a compiled script.  The token types are those of
+// StreamTokenizer (TT_WORD, TT_NUMBER, '"', or the character itself).  Tokens are
+// immutable, a '{' token carries the compiled body of the block it opens.  Within the
+// body of a function, a $name word is bound to the slot of its parameter and a quoted
+// string that references parameters carries a template for its expansion.
+final class Token {
+	final int ttype;
+	final String sval;
+	final double nval;
+	final int lineno;
+	final Script block;
+	final int slot;
+	final Template template;
+
+	Token(int ttype, String sval, double nval, int lineno, Script block) {
+		this(ttype, sval, nval, lineno, block, -1, null);
+	}
+
+	private Token(int ttype, String sval, double nval, int lineno, Script block, int slot, Template template) {
+		this.ttype = ttype;
+		this.sval = sval;
+		this.nval = nval;
+		this.lineno = lineno;
+		this.block = block;
+		this.slot = slot;
+		this.template = template;
+	}
+
+	Token(StreamTokenizer tokenizer) {
+		this(tokenizer.ttype, tokenizer.sval, tokenizer.nval, tokenizer.lineno(), null);
+	}
+
+	// A copy of this token with a different value, used when expanding arguments
+	// into the body of an alias or function as it is defined.
+	Token with(int ttype, String sval, double nval) {
+		return new Token(ttype, sval, nval, lineno, null);
+	}
+
+	Token with(Script block) {
+		return new Token(ttype, sval, nval, lineno, block);
+	}
+
+	// Resolve parameter references in this token against the parameters of a function
+	Token bind(List<String> params) {
+		switch(ttype) {
+		case StreamTokenizer.TT_WORD:
+			if (sval.startsWith("$")) {
+				int slot = params.indexOf(sval.substring(1));
+				if (slot != -1) return new Token(ttype, sval, nval, lineno, null, slot, null);
+			}
+			if (sval.startsWith("\\$")) {
+				return new Token(ttype, sval.substring(1), nval, lineno, null);
+			}
+			return this;
+		case '"':
+			Template template = Template.compile(sval, params);
+			return null == template ? this : new Token(ttype, sval, nval, lineno, null, -1, template);
+		case '{':
+			return with(block.bind(params));
+		}
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		switch(ttype) {
+		case StreamTokenizer.TT_WORD:
+			return sval;
+		case StreamTokenizer.TT_NUMBER:
+			return String.valueOf(nval);
+		case '"':
+		case '\'':
+			return (char) ttype + sval.replace("\\", "\\\\").replace("" + (char) ttype, "\\" + (char) ttype) + (char) ttype;
+		case '{':
+			return "{ " + block + " }";
+		default:
+			return String.valueOf((char) ttype);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.util.ArrayDeque;
+
+// A cursor over the tokens of a compiled script.  Presents the same interface as the
+// StreamTokenizer the interpreter was originally written against (nextToken, pushBack,
+// ttype, sval, nval and lineno) so commands, including those registered from outside
+// this package, read their arguments in the same way.
+//
+// A token stream can also be read directly from a Reader, lexing tokens only as they are
+// needed (blocks are still compiled whole).  This is used to execute the output of a
+// process as it is produced, without holding all of it in memory.  Only the last few
+// tokens are remembered, so only that many can be pushed back.
+public final class TokenStream {
+	private final Script script;
+	private final StreamTokenizer lexer;
+	private final String name;
+	private int pos = -1;
+	private Token token = null;
+	private static final int HISTORY = 8;
+	private final ArrayDeque<Token> history = new ArrayDeque<Token>();	// tokens before the current one
+	private final ArrayDeque<Token> pushed = new ArrayDeque<Token>();
+	private boolean eof = false;
+	public int ttype = StreamTokenizer.TT_EOF;
+	public String sval = null;
+	public double nval = 0;
+
+	TokenStream(Script script) {
+		this.script = script;
+		this.lexer = null;
+		this.name = script.name;
+	}
+
+	TokenStream(String name, Reader in) {
+		this.script = null;
+		this.lexer = new StreamTokenizer(in);
+		this.name = name;
+		Script.initTokenizer(lexer);
+	}
+
+	public int nextToken() throws IOException {
+		if (null != lexer) {
+			Token next = pushed.isEmpty() ? lex() : pushed.pop();
+			eof = null == next;
+			if (!eof && null != token) {
+				history.addLast(token);
+				if (history.size() > HISTORY) history.removeFirst();
+			}
+			return load(next);
+		}
+		if (pos < script.tokens.length) pos++;
+		return load(pos >= 0 && pos < script.tokens.length ? script.tokens[pos] : null);
+	}
+
+	public void pushBack() {
+		if (null != lexer) {
+			if (eof) {		// back to the last token, the next token is the end of input again
+				eof = false;
+				load(token);
+			} else if (null != token) {
+				pushed.push(token);
+				token = history.pollLast();
+				load(token);
+			}
+			return;
+		}
+		if (pos >= 0) pos--;
+		load(pos >= 0 && pos < script.tokens.length ? script.tokens[pos] : null);
+	}
+
+	private Token lex() throws IOException {
+		if (lexer.nextToken() == StreamTokenizer.TT_EOF) {
+			return null;
+		}
+		if (lexer.ttype == '{') {
+			int line = lexer.lineno();
+			return new Token('{', null, 0, line, Script.parse(name, lexer, line));
+		}
+		return new Token(lexer);
+	}
+
+	private int load(Token current) {
+		if (null != current) {
+			token = current;
+			ttype = current.ttype;
+			sval = current.sval;
+			nval = current.nval;
+		} else {
+			ttype = StreamTokenizer.TT_EOF;
+			sval = null;
+			nval = 0;
+		}
+		return ttype;
+	}
+
+	// The current token (or last token read when at the end of the script)
+	Token token() {
+		return token;
+	}
+
+	// The compiled body of the current token if it is a block
+	Script block() {
+		return ttype == '{' ? token.block : null;
+	}
+
+	public int lineno() {
+		return null == token ? 0 : token.lineno;
+	}
+}
@@ -0,0 +1,222 @@
+// Copyright 2014, RedSky IT
+// This software is release under the MIT License.
+// See LICENSE file for details.
+//
+package com.redskyit.scriptDriver;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// The engine's output.  Trace is written to a bounded ring buffer which a background thread
+// copies to stdout, so the interpreter only blocks on the console when the buffer is full.
+//
+// The trace level selects what is written:
+//   quiet      script output (echo etc.), failures and the run summary
+//   commands   also each command as it is run (the default)
+//   debug      also retry and reselect diagnostics
+// Output for a disabled level goes to a stream that discards it, and callers building an
+// expensive message check enabled() first.
+//
+// A thread can capture its output (and that of the threads it starts) so that scripts run
+// in parallel each write their output in one piece when they finish.
+final class Trace {
+	static final int QUIET = 0;
+	static final int COMMANDS = 1;
+	static final int DEBUG = 2;
+	private static final String[] LEVELS = { "quiet", "commands", "debug" };
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static volatile int level = COMMANDS;
+	private static final Buffer buffer = new Buffer(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE);
+	private static final InheritableThreadLocal<OutputStream> capture = new InheritableThreadLocal<OutputStream>();
+	static final PrintStream out = new PrintStream(new Router(), false);
+	static final PrintStream DISCARD = new Discard();
+
+	static {
+		Thread writer = new Thread("trace writer") {
+			@Override
+			public void run() {
+				buffer.drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("trace flush") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private Trace() {
+	}
+
+	static void setLevel(String name) throws Exception {
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (LEVELS[i].equals(name)) {
+				level = i;
+				return;
+			}
+		}
+		throw new Exception("unknown trace level " + name + ", should be quiet, commands or debug");
+	}
+
+	static boolean enabled(int at) {
+		return level >= at;
+	}
+
+	// The stream to write output of the given level to
+	static PrintStream at(int at) {
+		return level >= at ? out : DISCARD;
+	}
+
+	// Wait for everything written so far to reach stdout
+	static void flush() {
+		out.flush();
+	}
+
+	// Send this thread's output to stream instead of stdout, or to stdout again if null
+	static void capture(OutputStream stream) {
+		out.flush();
+		capture.set(stream);
+	}
+
+	// Write output captured by a thread, in one piece
+	static void write(byte[] captured) {
+		out.write(captured, 0, captured.length);
+	}
+
+	// Sends output to the thread's capture, if any, else the ring buffer
+	private static final class Router extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			OutputStream stream = capture.get();
+			(null == stream ? buffer : stream).write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			OutputStream stream = capture.get();
+			(null == stream ? buffer : stream).flush();
+		}
+	}
+
+	private static final class Buffer extends OutputStream {
+		private final OutputStream sink;
+		private final byte[] ring;
+		private int head = 0;			// next byte to copy to the sink
+		private int count = 0;			// bytes waiting to be copied
+		private boolean writing = false;
+
+		Buffer(OutputStream sink, int size) {
+			this.sink = sink;
+			this.ring = new byte[size];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (count == ring.length) {
+					await();
+				}
+				int tail = (head + count) % ring.length;
+				int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+				System.arraycopy(b, off, ring, tail, n);
+				count += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			while (count > 0 || writing) {
+				await();
+			}
+		}
+
+		private void await() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		// Copy the buffer to the sink, runs on the writer thread
+		void drain() {
+			byte[] chunk = new byte[8192];
+			for (;;) {
+				int n;
+				synchronized (this) {
+					while (count == 0) {
+						writing = false;
+						notifyAll();
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					writing = true;
+					n = Math.min(chunk.length, Math.min(count, ring.length - head));
+					System.arraycopy(ring, head, chunk, 0, n);
+					head = (head + n) % ring.length;
+					count -= n;
+					notifyAll();
+				}
+				try {
+					sink.write(chunk, 0, n);
+				} catch (IOException e) {
+					// stdout has gone, discard the trace
+				}
+			}
+		}
+	}
+
+	// Output of a disabled trace level
+	private static final class Discard extends PrintStream {
+		Discard() {
+			super(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			});
+		}
+		@Override public void write(int b) { }
+		@Override public void write(byte[] b, int off, int len) { }
+		@Override public void print(char c) { }
+		@Override public void print(int i) { }
+		@Override public void print(long l) { }
+		@Override public void print(double d) { }
+		@Override public void print(String s) { }
+		@Override public void print(Object obj) { }
+		@Override public void println() { }
+		@Override public void println(char x) { }
+		@Override public void println(int x) { }
+		@Override public void println(long x) { }
+		@Override public void println(double x) { }
+		@Override public void println(String x) { }
+		@Override public void println(Object x) { }
+		@Override public PrintStream printf(String format, Object... args) { return this; }
+	}
+}
@@ -0,0 +1,18 @@
+#!/bin/bash
+# Start a resident ScriptDriver, run scripts in it with send.sh.  Arguments are library
+# scripts whose functions are defined once, for every script sent.
+# Scripts sent run as you, and can run commands.  Only clients that can read the token in
+# ~/.scriptdriver/daemon-<port>.token (yours alone) are served.
+ENGINE_DIR=$( cd $(dirname "$0") ; pwd )
+cd "$ENGINE_DIR" 2>/dev/null || exit 2
+PORT=${SCRIPTDRIVER_PORT:-4545}
+LIBS=()
+for lib in "$@" ; do
+	case "$lib" in
+	/*) LIBS+=("$lib") ;;
+	*) LIBS+=("$OLDPWD/$lib") ;;
+	esac
+done
+exec java -Dwebdriver.chrome.driver=lib/chromedriver \
+	-classpath lib/testEngine.jar:lib/selenium-server-standalone-2.42.2.jar \
+	com.redskyit.scriptDriver.RunTests --daemon $PORT "${LIBS[@]}"
@@ -22,7 +22,7 @@ dist() {
 	rm -rf $DIST $DIST.tgz
 	mkdir $DIST $DIST/lib $DIST/examples
 
-	cp ../tools/run.sh $DIST
+	cp ../tools/run.sh ../tools/daemon.sh ../tools/send.sh $DIST
 	cp ../examples/* $DIST/examples
 	cp ../Engine/lib/sel*.jar $DIST/lib
 	cp ../Engine/lib/common-io*.jar $DIST/lib
@@ -0,0 +1,25 @@
+#!/bin/bash
+# Run scripts in the resident ScriptDriver started by daemon.sh, "send.sh --stop" stops it
+PORT=${SCRIPTDRIVER_PORT:-4545}
+TOKEN_FILE="$HOME/.scriptdriver/daemon-$PORT.token"
+[ -r "$TOKEN_FILE" ] || { echo "No ScriptDriver daemon token $TOKEN_FILE, is daemon.sh running as you?" 1>&2 ; exit 2; }
+exec 3<>/dev/tcp/127.0.0.1/$PORT || { echo "No ScriptDriver daemon on port $PORT" 1>&2 ; exit 2; }
+SCRIPTS=()
+for script in "$@" ; do
+	case "$script" in
+	/*|--*) SCRIPTS+=("$script") ;;
+	*) SCRIPTS+=("$PWD/$script") ;;
+	esac
+done
+cat "$TOKEN_FILE" >&3
+echo >&3
+( IFS=$'\t' ; echo "${SCRIPTS[*]}" ) >&3
+status=2
+while IFS= read -r line <&3 ; do
+	case "$line" in
+	"// EXIT: "*) status=${line#// EXIT: } ;;
+	*) echo "$line" ;;
+	esac
+done
+echo "Test status: $status"
+exit $status